@@ -0,0 +1,46 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.TtlJitter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * 缓存工具类的按键前缀配置
+ * @author CHAN
+ * @since 2022/4/23
+ */
+@Configuration
+public class CacheConfig {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    // 商铺缓存提前刷新的beta，小于等于0表示不开启
+    @Value("${hmdp.cache.early-refresh.shop-beta:1.0}")
+    private double shopEarlyRefreshBeta;
+
+    // 商铺缓存过期时间的抖动分布和最大比例，比例为0表示不抖动
+    @Value("${hmdp.cache.jitter.shop-distribution:UNIFORM}")
+    private TtlJitter.Distribution shopJitterDistribution;
+
+    @Value("${hmdp.cache.jitter.shop-ratio:0.2}")
+    private double shopJitterRatio;
+
+    @PostConstruct
+    public void init() {
+        if (shopEarlyRefreshBeta > 0) {
+            // 商铺是逻辑过期的热点数据，在过期之前按概率提前重建，避免到期那一刻大量请求拿到旧数据
+            cacheClient.enableEarlyRefresh(CACHE_SHOP_KEY, shopEarlyRefreshBeta);
+        }
+        if (shopJitterRatio > 0) {
+            // 预热和批量修改时同一批商铺的过期时间分散开，不会在同一秒一起过期、一起重建
+            cacheClient.registerTtlJitter(CACHE_SHOP_KEY, new TtlJitter(shopJitterDistribution, shopJitterRatio));
+        }
+    }
+}
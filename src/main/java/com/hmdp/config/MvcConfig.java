@@ -1,13 +1,18 @@
 package com.hmdp.config;
 
+import com.hmdp.interceptor.AdminInterceptor;
 import com.hmdp.interceptor.LoginInterceptor;
+import com.hmdp.interceptor.ReadinessInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.ApplicationAvailability;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 /**
  * @author CHAN
@@ -19,8 +24,17 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    // 可以访问管理接口的用户id，逗号分隔
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        //就绪拦截器，启动时的缓存预热完成之前返回503
+        registry.addInterceptor(new ReadinessInterceptor(applicationAvailability)).addPathPatterns("/**").order(-1);
         //token刷新拦截器，order设置优先级，数字越小越先执行
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
         //登录拦截器
@@ -33,5 +47,9 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/user/code",
                 "/user/login"
         ).order(1);
+        //管理员拦截器，/voucher/**不需要登录，补充库存这类管理接口单独拦截
+        registry.addInterceptor(new AdminInterceptor(adminIds)).addPathPatterns(
+                "/voucher/seckill/*/stock"
+        ).order(2);
     }
 }
@@ -1,10 +1,22 @@
 package com.hmdp.config;
 
+import com.hmdp.listener.CacheInvalidateListener;
+import com.hmdp.listener.SeckillSoldOutListener;
+import com.hmdp.listener.ShopChangedListener;
+import com.hmdp.listener.ShopTypeChangedListener;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
 
 /**
  * @author CHAN
@@ -22,4 +34,23 @@ public class RedisConfig {
         //创建客户端
         return Redisson.create(config);
     }
+
+    /**
+     * redis发布订阅的监听容器，用于接收其他节点发出的缓存失效通知、商铺变更通知、商铺类型变更通知和秒杀券售罄通知
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory,
+            CacheInvalidateListener cacheInvalidateListener,
+            ShopChangedListener shopChangedListener,
+            ShopTypeChangedListener shopTypeChangedListener,
+            SeckillSoldOutListener seckillSoldOutListener) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(cacheInvalidateListener, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        container.addMessageListener(shopChangedListener, new ChannelTopic(SHOP_CHANGED_CHANNEL));
+        container.addMessageListener(shopTypeChangedListener, new ChannelTopic(SHOP_TYPE_CHANGED_CHANNEL));
+        container.addMessageListener(seckillSoldOutListener, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        return container;
+    }
 }
@@ -0,0 +1,220 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheSweeper;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.LocalBloomFilter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * <p>
+ * 缓存管理控制器，查看缓存相关的指标和手动维护缓存
+ * </p>
+ *
+ * @author CHAN
+ * @since 2022-04-21
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheSweeper cacheSweeper;
+
+    /**
+     * 查看商铺布隆过滤器的状态和误判率
+     * @return 布隆过滤器指标
+     */
+    @GetMapping("/bloom")
+    public Result queryBloomFilter() {
+        LocalBloomFilter bloomFilter = cacheClient.getBloomFilter(CACHE_SHOP_KEY);
+        if (bloomFilter == null) {
+            return Result.fail("布隆过滤器未初始化");
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("insertions", bloomFilter.getInsertions());
+        stats.put("bitSize", bloomFilter.getBitSize());
+        stats.put("hashCount", bloomFilter.getHashCount());
+        stats.put("expectedFpp", bloomFilter.expectedFpp());
+        stats.put("mightContainCount", bloomFilter.getMightContainCount());
+        stats.put("rejectedCount", bloomFilter.getRejectedCount());
+        stats.put("falsePositiveCount", bloomFilter.getFalsePositiveCount());
+        stats.put("observedFpp", bloomFilter.observedFpp());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 查看按键前缀统计的命中率、空值命中率、返回过期数据次数、重建次数、获取锁失败次数和各项耗时分布
+     * @return 缓存指标
+     */
+    @GetMapping("/metrics")
+    public Result queryMetrics() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 查看当前的热点key，以及升级以来的访问次数和本地命中率
+     * @return 热点key列表
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.getHotKeys());
+    }
+
+    /**
+     * 查看一个键前缀下的key距离过期时间的分布，用于确认过期时间的抖动是否把过期分散开
+     * @param prefix 键前缀
+     * @param bucket 每个桶的时长，单位秒
+     * @param limit 最多统计的key数量
+     * @return 过期时间分布
+     */
+    @GetMapping("/expiry")
+    public Result queryExpiry(@RequestParam(value = "prefix", defaultValue = CACHE_SHOP_KEY) String prefix,
+                              @RequestParam(value = "bucket", defaultValue = "60") Long bucket,
+                              @RequestParam(value = "limit", defaultValue = "10000") Integer limit) {
+        if (bucket <= 0 || limit <= 0) {
+            return Result.fail("参数错误");
+        }
+        return Result.ok(cacheClient.expiryHistogram(prefix, bucket, limit));
+    }
+
+    /**
+     * 在线重建商铺布隆过滤器
+     * @return 无
+     */
+    @PostMapping("/bloom/rebuild")
+    public Result rebuildBloomFilter() {
+        shopService.rebuildBloomFilter();
+        return Result.ok();
+    }
+
+    /**
+     * 查看商铺搜索索引的文档数、gram数和估算的内存占用
+     * @return 索引指标
+     */
+    @GetMapping("/search-index")
+    public Result querySearchIndex() {
+        return Result.ok(shopService.searchIndexStats());
+    }
+
+    /**
+     * 在线重建商铺搜索索引
+     * @return 无
+     */
+    @PostMapping("/search-index/rebuild")
+    public Result rebuildSearchIndex() {
+        shopService.rebuildSearchIndex();
+        return Result.ok();
+    }
+
+    /**
+     * 查看本地空间索引的分区数、点数、格子数和估算的内存占用
+     * @return 索引指标
+     */
+    @GetMapping("/geo-index")
+    public Result queryGeoIndex() {
+        return Result.ok(shopService.geoIndexStats());
+    }
+
+    /**
+     * 在线重建本地空间索引
+     * @return 无
+     */
+    @PostMapping("/geo-index/rebuild")
+    public Result rebuildGeoIndex() {
+        shopService.rebuildGeoIndex();
+        return Result.ok();
+    }
+
+    /**
+     * 全量重建按类型的商铺排行和GEO索引，构建完成后替换正在使用的数据
+     * @return 无
+     */
+    @PostMapping("/shop-rank/rebuild")
+    public Result rebuildShopTypeRank() {
+        shopService.rebuildShopTypeRank();
+        return Result.ok();
+    }
+
+    /**
+     * 手动触发缓存预热，在后台执行
+     * @return 无
+     */
+    @PostMapping("/warm-up")
+    public Result warmUp() {
+        if (!cacheWarmer.warmUpAsync()) {
+            return Result.fail("缓存预热正在进行中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查看最近一次缓存预热的进度和吞吐量
+     * @return 预热进度
+     */
+    @GetMapping("/warm-up")
+    public Result queryWarmUp() {
+        return Result.ok(cacheWarmer.getReport());
+    }
+
+    /**
+     * 手动触发清理逻辑过期超过宽限期的数据和没有TTL的空值，在后台执行
+     * @return 无
+     */
+    @PostMapping("/sweep")
+    public Result sweep() {
+        if (!cacheSweeper.sweepAsync()) {
+            return Result.fail("缓存清理正在进行中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查看最近一次缓存清理删除的key数量和回收的字节数
+     * @return 清理结果
+     */
+    @GetMapping("/sweep")
+    public Result querySweep() {
+        return Result.ok(cacheSweeper.getReport());
+    }
+
+    /**
+     * 修改商铺类型后调用，自增版本号，各节点重新加载商铺类型快照
+     * @return 无
+     */
+    @PostMapping("/shop-types/refresh")
+    public Result refreshShopTypes() {
+        shopTypeService.refreshTypes();
+        return Result.ok();
+    }
+}
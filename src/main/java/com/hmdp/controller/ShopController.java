@@ -1,15 +1,21 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.JsonResponseWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
 
 /**
  * <p>
@@ -26,14 +32,31 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private JsonResponseWriter jsonResponseWriter;
+
+    // 商铺详情允许客户端和代理缓存的时间，单位秒
+    @Value("${hmdp.http.max-age.shop:10}")
+    private long shopMaxAge;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public void queryShopById(@PathVariable("id") Long id, ServletWebRequest webRequest) throws IOException {
+        // return shopService.queryById(id);
+        // 本地缓存命中时复用上一次序列化的JSON和ETag，直接写入响应或者返回304
+        Shop shop = shopService.queryCachedById(id);
+        if (shop == null) {
+            jsonResponseWriter.write(webRequest.getResponse(), Result.fail("商铺不存在"));
+            return;
+        }
+        long lastModified = shop.getUpdateTime() == null
+                ? -1 : shop.getUpdateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        jsonResponseWriter.writeOk(webRequest, CACHE_SHOP_KEY + id, shop, lastModified,
+                CacheControl.maxAge(shopMaxAge, TimeUnit.SECONDS).cachePublic());
     }
 
     /**
@@ -43,10 +66,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，并通知所有节点更新布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -66,19 +87,32 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param sortBy 排序字段：score、sold、comments
+     * @param x 经度，传了坐标时查询附近的商铺，不指定排序字段时按距离排序
+     * @param y 纬度
+     * @param lastDistance 按距离排序时上一页最后一个商铺的距离，和lastId一起作为游标，不传时按页码分页
+     * @param lastId 按距离排序时上一页最后一个商铺的id
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "sortBy", required = false) String sortBy,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId
     ) {
         // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        // Page<Shop> page = shopService.query()
+        //         .eq("type_id", typeId)
+        //         .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
         // 返回数据
-        return Result.ok(page.getRecords());
+        // return Result.ok(page.getRecords());
+        // 从redis中按类型维护的排行分页，不再每次翻页都查询数据库
+        // 传了坐标时从按类型的空间索引中查询附近的商铺
+        return shopService.queryShopByType(typeId, current, sortBy, x, y, lastDistance, lastId);
     }
 
     /**
@@ -93,10 +127,12 @@ public class ShopController {
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
         // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        // Page<Shop> page = shopService.query()
+        //         .like(StrUtil.isNotBlank(name), "name", name)
+        //         .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 返回数据
-        return Result.ok(page.getRecords());
+        // return Result.ok(page.getRecords());
+        // 从本地的n-gram索引中搜索，不再用like全表扫描
+        return shopService.queryShopByName(name, current);
     }
 }
@@ -1,13 +1,21 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.JsonResponseWriter;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.web.context.request.ServletWebRequest;
+
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
 
 /**
  * <p>
@@ -23,9 +31,19 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    @Resource
+    private JsonResponseWriter jsonResponseWriter;
+
+    // 商铺类型列表允许客户端和代理缓存的时间，单位秒
+    @Value("${hmdp.http.max-age.shop-type:300}")
+    private long shopTypeMaxAge;
+
     @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryTypes();
+    public void queryTypeList(ServletWebRequest webRequest) throws IOException {
+        // 商铺类型几乎不变，直接写出本地快照中序列化好的响应，快照没变时返回304
+        jsonResponseWriter.write(webRequest, CACHE_SHOP_TYPE_KEY, typeService.queryTypesJson(),
+                CacheControl.maxAge(shopTypeMaxAge, TimeUnit.SECONDS).cachePublic());
+        // return typeService.queryTypes();
         // List<ShopType> typeList = typeService.query().orderByAsc("sort").list();
         // return Result.ok(typeList);
     }
@@ -4,9 +4,17 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.JsonResponseWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_KEY;
 
 /**
  * <p>
@@ -23,6 +31,13 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private JsonResponseWriter jsonResponseWriter;
+
+    // 优惠券列表中有秒杀库存，允许客户端和代理缓存的时间很短，单位秒
+    @Value("${hmdp.http.max-age.voucher:5}")
+    private long voucherMaxAge;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -30,7 +45,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,13 +60,34 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存，同时清除所有节点的售罄标记，只有hmdp.admin.user-ids中的用户可以调用
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @return 无
+     */
+    @PostMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的数量必须大于0");
+        }
+        if (!voucherService.addSeckillStock(voucherId, count)) {
+            return Result.fail("秒杀券不存在");
+        }
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
      * @return 优惠券列表
      */
     @GetMapping("/list/{shopId}")
-    public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
-       return voucherService.queryVoucherOfShop(shopId);
+    public void queryVoucherOfShop(@PathVariable("shopId") Long shopId, ServletWebRequest webRequest) throws IOException {
+        // return voucherService.queryVoucherOfShop(shopId);
+        // 缓存中是序列化好的列表，直接拼到响应中写出，列表没变时返回304
+        jsonResponseWriter.writeOk(webRequest, CACHE_VOUCHER_LIST_KEY + shopId,
+                voucherService.queryVoucherOfShopJson(shopId), -1,
+                CacheControl.maxAge(voucherMaxAge, TimeUnit.SECONDS).cachePublic());
     }
 }
@@ -57,5 +57,10 @@ public class SeckillVoucher implements Serializable {
      */
     private LocalDateTime updateTime;
 
+    /**
+     * 库存在redis中的分段数，大于1时库存分散在多个分段中
+     */
+    private Integer segments;
+
 
 }
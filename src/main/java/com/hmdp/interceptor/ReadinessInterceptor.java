@@ -0,0 +1,35 @@
+package com.hmdp.interceptor;
+
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 就绪拦截器，应用就绪之前的请求直接返回503
+ * 启动时Tomcat在ApplicationRunner执行期间就已经开始接收请求，缓存预热还没有完成时请求会直接打到数据库
+ * Spring Boot在所有ApplicationRunner执行完之后才把就绪状态改为ACCEPTING_TRAFFIC，这里按这个状态放行
+ * @author CHAN
+ * @since 2022/4/24
+ */
+public class ReadinessInterceptor implements HandlerInterceptor {
+
+    private final ApplicationAvailability availability;
+
+    public ReadinessInterceptor(ApplicationAvailability availability) {
+        this.availability = availability;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (availability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC) {
+            return true;
+        }
+        //还没有就绪，让负载均衡把请求转给其他节点
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        return false;
+    }
+}
@@ -0,0 +1,33 @@
+package com.hmdp.listener;
+
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 监听缓存失效广播，删除本节点的本地缓存
+ * @author CHAN
+ * @since 2022/4/20
+ */
+@Component
+@Slf4j
+public class CacheInvalidateListener implements MessageListener {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 批量删除时一条消息中有多个key，用换行分隔
+        String keys = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到缓存失效通知，key: {}", keys);
+        for (String key : keys.split("\n")) {
+            cacheClient.evictLocal(key);
+        }
+    }
+}
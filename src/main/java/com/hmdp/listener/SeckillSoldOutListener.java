@@ -0,0 +1,30 @@
+package com.hmdp.listener;
+
+import com.hmdp.utils.SoldOutFlags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 监听秒杀券售罄和补充库存的广播，修改本节点的售罄标记
+ * @author CHAN
+ * @since 2022/4/28
+ */
+@Component
+@Slf4j
+public class SeckillSoldOutListener implements MessageListener {
+
+    @Resource
+    private SoldOutFlags soldOutFlags;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到秒杀券售罄通知: {}", body);
+        soldOutFlags.onMessage(body);
+    }
+}
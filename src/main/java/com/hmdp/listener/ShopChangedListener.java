@@ -0,0 +1,30 @@
+package com.hmdp.listener;
+
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 监听商铺新增或修改的广播，更新本节点的布隆过滤器等本地数据
+ * @author CHAN
+ * @since 2022/4/21
+ */
+@Component
+@Slf4j
+public class ShopChangedListener implements MessageListener {
+
+    @Resource
+    private IShopService shopService;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到商铺变更通知: {}", body);
+        shopService.onShopChangedMessage(body);
+    }
+}
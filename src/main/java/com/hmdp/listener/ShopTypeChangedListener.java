@@ -0,0 +1,30 @@
+package com.hmdp.listener;
+
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 监听商铺类型变更的广播，重新加载本节点的商铺类型快照
+ * @author CHAN
+ * @since 2022/4/27
+ */
+@Component
+@Slf4j
+public class ShopTypeChangedListener implements MessageListener {
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String version = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到商铺类型变更通知，版本: {}", version);
+        shopTypeService.onTypesChanged();
+    }
+}
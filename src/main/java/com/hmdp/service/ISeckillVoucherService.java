@@ -13,4 +13,16 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 查询秒杀券的开始和结束时间，依次查询本地缓存、redis中的哈希和数据库
+     * @param voucherId 优惠券id
+     * @return 只有优惠券id、开始时间、结束时间和库存分段数，不含库存；秒杀券不存在时返回null
+     */
+    SeckillVoucher querySaleWindow(Long voucherId);
+
+    /**
+     * 把秒杀券的开始和结束时间、库存分段数写入本地缓存和redis中的哈希，lua脚本用哈希校验秒杀时间
+     * @param seckillVoucher 秒杀券
+     */
+    void cacheSaleWindow(SeckillVoucher seckillVoucher);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,72 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    /**
+     * 从缓存中查询商铺，本地缓存命中时返回的是同一个对象，不能修改
+     * @param id 商铺id
+     * @return 商铺，不存在时返回null
+     */
+    Shop queryCachedById(Long id);
+
     Result updateShopById(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    void onShopChanged(Long id);
+
+    /**
+     * 收到商铺变更广播时调用，本节点发出的广播已经处理过，直接跳过
+     * @param message 发出广播的节点标识:商铺id
+     */
+    void onShopChangedMessage(String message);
+
+    void rebuildBloomFilter();
+
+    /**
+     * 根据商铺类型分页查询商铺，从redis中按类型维护的排行中取出一页id，再批量查询商铺
+     * 传了坐标时查询附近的商铺，不指定排序字段时按距离排序，指定时和距离综合排序，返回的商铺带距离
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param sortBy 排序字段：score、sold、comments，为空时使用配置的默认值
+     * @param x 经度，可以为空
+     * @param y 纬度，可以为空
+     * @param lastDistance 按距离排序时的游标，上一页最后一个商铺的距离，为空时按页码分页
+     * @param lastId 按距离排序时的游标，上一页最后一个商铺的id
+     * @return 商铺列表
+     */
+    Result queryShopByType(Integer typeId, Integer current, String sortBy, Double x, Double y,
+                           Double lastDistance, Long lastId);
+
+    /**
+     * 全量重建按类型的商铺排行和GEO索引，构建完成后整体替换
+     */
+    void rebuildShopTypeRank();
+
+    /**
+     * 根据关键字搜索商铺名称、商圈和地址，按匹配程度和评分排序后分页
+     * @param name 关键字，为空时不过滤
+     * @param current 页码
+     * @return 商铺列表
+     */
+    Result queryShopByName(String name, Integer current);
+
+    /**
+     * @return 本地搜索索引的文档数、gram数和估算的内存占用
+     */
+    Map<String, Object> searchIndexStats();
+
+    /**
+     * 重建本地搜索索引，构建完成后整体替换
+     */
+    void rebuildSearchIndex();
+
+    /**
+     * @return 本地空间索引的分区数、点数、格子数和估算的内存占用，没有开启本地空间索引时为空
+     */
+    Map<String, Object> geoIndexStats();
+
+    /**
+     * 重建本地空间索引，构建完成后整体替换，没有开启本地空间索引时什么也不做
+     */
+    void rebuildGeoIndex();
 }
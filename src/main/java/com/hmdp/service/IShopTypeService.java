@@ -15,4 +15,26 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypes();
+
+    /**
+     * 查询商铺类型列表，直接返回本地快照中序列化好的响应，内容和queryTypes()一致
+     * @return 响应的JSON字节，不能修改
+     */
+    byte[] queryTypesJson();
+
+    /**
+     * 商铺类型修改后调用，用数据库中的数据替换redis中的列表并自增版本号，通知各节点重新加载
+     */
+    void refreshTypes();
+
+    /**
+     * 用数据库中的商铺类型整体替换redis中的列表，删除和写入原子完成
+     * @return 写入的条数
+     */
+    int cacheTypes();
+
+    /**
+     * 收到商铺类型变更通知时调用，版本号变化时重新加载本地快照
+     */
+    void onTypesChanged();
 }
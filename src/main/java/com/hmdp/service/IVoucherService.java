@@ -16,5 +16,22 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    /**
+     * 查询店铺的优惠券列表，返回缓存中序列化好的JSON数组
+     * @param shopId 店铺id
+     * @return 优惠券列表的JSON字节，不能修改
+     */
+    byte[] queryVoucherOfShopJson(Long shopId);
+
+    void addVoucher(Voucher voucher);
+
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 补充秒杀券库存，事务提交之后增加redis中的库存并清除所有节点的售罄标记
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @return 秒杀券不存在时返回false
+     */
+    boolean addSeckillStock(Long voucherId, int count);
 }
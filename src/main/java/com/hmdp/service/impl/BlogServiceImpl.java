@@ -15,6 +15,7 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.BeanUtils;
@@ -25,10 +26,10 @@ import org.springframework.util.CollectionUtils;
 
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -47,6 +48,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private FollowMapper followMapper;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -56,12 +59,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 批量查询用户
+        Map<Long, UserDTO> users = queryUsers(records.stream().map(Blog::getUserId).collect(Collectors.toList()));
         records.forEach(blog -> {
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
+            fillBlogUser(blog, users.get(blog.getUserId()));
             isBlogLiked(blog);
         });
         return Result.ok(records);
@@ -145,14 +146,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // range出来的结果默认就是按照score排序的，redis中sortedSet的命令，zrange是升序排的，zrevrange是降序排的
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         if (!CollectionUtils.isEmpty(top5)) {
-            List<UserDTO> userDTOS = top5.stream().map((userIdStr) -> {
-                Long userId = Long.valueOf(userIdStr);
-                //根据用户id查询用户
-                User user = userService.getById(userId);
-                UserDTO userDTO = new UserDTO();
-                BeanUtils.copyProperties(user, userDTO);
-                return userDTO;
-            }).collect(Collectors.toList());
+            //根据用户id批量查询用户，返回的顺序和点赞的顺序一致
+            List<Long> userIds = top5.stream().map(Long::valueOf).collect(Collectors.toList());
+            List<UserDTO> userDTOS = new ArrayList<>(queryUsers(userIds).values());
             //返回
             return Result.ok(userDTOS);
         } else {
@@ -219,11 +215,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        // 5.1.批量查询blog有关的用户
+        Map<Long, UserDTO> users = queryUsers(blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
         for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            User user = userService.getById(blog.getUserId());
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
+            fillBlogUser(blog, users.get(blog.getUserId()));
             // 5.2.查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -236,4 +231,29 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         return Result.ok(r);
     }
+
+    /**
+     * 批量查询用户，优先从缓存中取，缓存中没有的用户一次性查询数据库
+     *
+     * @param userIds 用户id
+     * @return 用户id -> 用户
+     */
+    private Map<Long, UserDTO> queryUsers(Collection<Long> userIds) {
+        return cacheClient.queryBatchByIds(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .map(user -> {
+                            UserDTO userDTO = new UserDTO();
+                            BeanUtils.copyProperties(user, userDTO);
+                            return userDTO;
+                        })
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    private void fillBlogUser(Blog blog, UserDTO user) {
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+    }
 }
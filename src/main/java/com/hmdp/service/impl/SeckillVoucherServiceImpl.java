@@ -1,11 +1,25 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.date.LocalDateTimeUtil;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_BEGIN_FIELD;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_END_FIELD;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_SEGMENTS_FIELD;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -17,4 +31,53 @@ import org.springframework.stereotype.Service;
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 秒杀券的开始和结束时间，秒杀请求不再查询数据库；秒杀券创建之后时间不会修改，不需要失效
+    private final Map<Long, SeckillVoucher> saleWindows = new ConcurrentHashMap<>();
+
+    @Override
+    public SeckillVoucher querySaleWindow(Long voucherId) {
+        // 1.本地缓存
+        SeckillVoucher window = saleWindows.get(voucherId);
+        if (window != null) {
+            return window;
+        }
+        // 2.redis中的哈希，其他节点创建或者预热时写入，值为毫秒时间戳
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_VOUCHER_KEY + voucherId,
+                Arrays.asList(SECKILL_VOUCHER_BEGIN_FIELD, SECKILL_VOUCHER_END_FIELD, SECKILL_VOUCHER_SEGMENTS_FIELD));
+        // 三个字段都在才使用，缺了分段数时以数据库为准
+        if (values.get(0) != null && values.get(1) != null && values.get(2) != null) {
+            window = new SeckillVoucher()
+                    .setVoucherId(voucherId)
+                    .setBeginTime(LocalDateTimeUtil.of(Long.parseLong((String) values.get(0))))
+                    .setEndTime(LocalDateTimeUtil.of(Long.parseLong((String) values.get(1))))
+                    .setSegments(Integer.valueOf((String) values.get(2)));
+            saleWindows.put(voucherId, window);
+            return window;
+        }
+        // 3.数据库，查到之后写回redis
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            return null;
+        }
+        cacheSaleWindow(seckillVoucher);
+        return saleWindows.get(voucherId);
+    }
+
+    @Override
+    public void cacheSaleWindow(SeckillVoucher seckillVoucher) {
+        SeckillVoucher window = new SeckillVoucher()
+                .setVoucherId(seckillVoucher.getVoucherId())
+                .setBeginTime(seckillVoucher.getBeginTime())
+                .setEndTime(seckillVoucher.getEndTime())
+                .setSegments(seckillVoucher.getSegments() == null ? 1 : seckillVoucher.getSegments());
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put(SECKILL_VOUCHER_BEGIN_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(window.getBeginTime())));
+        fields.put(SECKILL_VOUCHER_END_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(window.getEndTime())));
+        fields.put(SECKILL_VOUCHER_SEGMENTS_FIELD, window.getSegments().toString());
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + window.getVoucherId(), fields);
+        saleWindows.put(window.getVoucherId(), window);
+    }
 }
@@ -1,27 +1,45 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.GeoGridIndex;
+import com.hmdp.utils.LocalBloomFilter;
+import com.hmdp.utils.NgramIndex;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.*;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -41,7 +59,60 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private ShopMapper shopMapper;
 
-    public static ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(2);
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    // 在线重建时正在构建的布隆过滤器，重建期间新增的商铺要同时加进去
+    private volatile LocalBloomFilter buildingBloomFilter;
+
+    // 按类型排行支持的排序字段 -> 取出排序值，字段名和tb_shop的列名一致
+    private static final Map<String, Function<Shop, Integer>> RANK_FIELDS = new LinkedHashMap<>();
+    static {
+        RANK_FIELDS.put("score", Shop::getScore);
+        RANK_FIELDS.put("sold", Shop::getSold);
+        RANK_FIELDS.put("comments", Shop::getComments);
+    }
+    // 重建排行时写入的临时key的后缀，构建完成后改名替换
+    private static final String RANK_BUILDING_SUFFIX = ":building";
+
+    // 附近商铺的查询半径，单位米
+    @Value("${hmdp.shop.geo.radius:5000}")
+    private double nearbyRadius;
+
+    // 附近商铺是否从本地网格索引查询，否则用redis的GEO索引
+    @Value("${hmdp.shop.geo.local-index:true}")
+    private boolean localGeoIndex;
+
+    // 本地网格索引的格子边长，单位度
+    @Value("${hmdp.shop.geo.cell-size:0.01}")
+    private double geoCellDegrees;
+
+    // 附近商铺按评分、销量排序时的距离衰减，距离为这个值时排序值减半，单位米
+    @Value("${hmdp.shop.geo.decay:1000}")
+    private double nearbyDecay;
+
+    // 不指定排序字段时的默认排序
+    @Value("${hmdp.shop.rank.default-sort:score}")
+    private String defaultRankField;
+
+    // 本节点的标识，用于识别自己发出的商铺变更广播
+    private final String nodeId = UUID.fastUUID().toString(true);
+
+    // 全量重建排行期间不为null，记录已经写入临时key的类型，重建期间的增量更新要同时写入临时key
+    private volatile Rebuild<Set<Long>> rankRebuild;
+
+    // 商铺名称、商圈、地址的本地搜索索引
+    private volatile NgramIndex searchIndex = new NgramIndex();
+    // 在线重建时正在构建的搜索索引，重建期间新增和修改的商铺要同时写进去
+    private volatile Rebuild<NgramIndex> searchRebuild;
+
+    // 按类型分区的本地网格空间索引，点上带着商铺数据，启动时构建
+    private volatile GeoGridIndex<Shop> geoIndex;
+    // 在线重建时正在构建的空间索引，重建期间新增和修改的商铺要同时写进去
+    private volatile Rebuild<GeoGridIndex<Shop>> geoRebuild;
 
     @Override
     public Result queryById(Long id) {
@@ -59,6 +130,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Shop queryCachedById(Long id) {
+        //和queryById走同一条缓存路径
+        return queryByIdWithBreakDownByLogicalExpiration(id);
+    }
+
     /**
      * 用逻辑过期的方式解决查询商铺时可能发生的缓存击穿问题（高可用性、一致性一般）
      * 这种方式不设置过期时间ttl，添加一个字段标识过期时间，使用逻辑判断过期的方式
@@ -67,48 +144,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return shop
      */
     public Shop queryByIdWithBreakDownByLogicalExpiration(Long id) {
-        String redisDataJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        if (StrUtil.isNotBlank(redisDataJson)) {
-            RedisData redisData = JSONUtil.toBean(redisDataJson, RedisData.class);
-            Object data = redisData.getData();
-            LocalDateTime expireTime = redisData.getExpireTime();
-            Shop shop = JSONUtil.toBean((JSONObject) data, Shop.class);
-            if (LocalDateTime.now().isBefore(expireTime)) {
-                //返回的数据没过期
-                return shop;
-            } else {
-                //过期了，需要缓存重建，要先从数据库中查询，加一个互斥锁保护mysql的安全
-                if (getLock(id)) {
-                    //异步去刷新redis的数据
-                    CACHE_REBUILD_POOL.submit(() -> {
-                        try {
-                            saveShopToRedis(id, 20L);
-                            TimeUnit.MILLISECONDS.sleep(200);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        } finally {
-                            releaseLock(id);
-                        }
-                    });
-                }
-                //没拿到锁。不等，直接返回一个过期的数据，但这个数据不一定就是错的
-                return shop;
-            }
-        }
-        if (Objects.equals(redisDataJson, "")) {
-            return null;
-        }
-        //缓存查不到的话
-        Shop shop = shopMapper.selectById(id);
-        if (shop == null) {
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(20L));
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
-        return shop;
+        //缓存的读写统一交给缓存工具类，由它负责编码方式、本地缓存和异步重建
+        //过期了就由拿到互斥锁的线程异步去刷新redis的数据，没拿到锁的不等，直接返回一个过期的数据
+        return cacheClient.queryWithLogicalExpire(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
     }
 
     /**
@@ -119,36 +158,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return shop
      */
     public Shop queryByIdWithBreakDownByMutex(Long id) {
-        String shopJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        if (Objects.equals(shopJson, "")) {
-            return null;
-        }
         //缓存中拿不到数据，需要查询数据库，涉及到数据要考虑缓存穿透和缓存击穿的问题
-        try {
-            if (!getLock(id)) {
-                TimeUnit.SECONDS.sleep(1);
-                //递归调用，重新尝试到缓存中取数据，没有数据则尝试获取锁，拿不到锁就再次进到这个代码块
-                queryByIdWithBreakDownByMutex(id);
-            } else {
-                Shop shop = shopMapper.selectById(id);
-                //模拟查询数据库的延时
-                TimeUnit.MILLISECONDS.sleep(200);
-                if (shop == null) {
-                    stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                    return null;
-                }
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                return shop;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            releaseLock(id);
-        }
-        return null;
+        //之前拿不到锁时休眠1秒后递归重试，高并发下每个线程都在轮询redis，还会占用栈深度
+        //现在交给缓存工具类：同一节点上同一个商铺的并发请求合并为一个，只有一个线程去竞争分布式锁，其他线程等结果出来后被唤醒
+        return cacheClient.queryWithMutex(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -160,51 +174,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return shop
      */
     public Shop queryByIdWithPassThroughBySetNil(Long id) {
-        //从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        //判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //有效解决缓存穿透
-        if (Objects.equals(shopJson, "")) {
-            return null;
-        }
-        //缓存中不存在，根据id查询数据库
-        Shop shop = shopMapper.selectById(id);
-        //数据库中不存在，在redis中给这个键设置一个空值，防止缓存穿透，并返回错误
-        if (shop == null) {
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //数据库中存在，将数据写入redis，这里设置一个超时时间，是为双写一致性方案可能会出现的纰漏兜底
-        //即使极端情况发生导致数据库和缓存的数据不一致，那么到达超时时间之后缓存会清空，数据再被访问时会同步新数据
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //返回
-        return shop;
-    }
-
-    /**
-     * 互斥锁获取
-     *
-     * @param id 商品id
-     * @return boolean
-     */
-    private boolean getLock(Long id) {
-        //使用redis的setNx实现互斥锁
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.LOCK_SHOP_KEY + id, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        //防止空指针，因此使用工具类转换一下
-        return BooleanUtil.isTrue(flag);
-    }
-
-    /**
-     * 互斥锁释放
-     *
-     * @param id 商品id
-     */
-    private void releaseLock(Long id) {
-        stringRedisTemplate.delete(RedisConstants.LOCK_SHOP_KEY + id);
+        //数据库中不存在时在redis中写入空值，数据库中存在时写入redis并设置超时时间，为双写一致性方案可能会出现的纰漏兜底
+        return cacheClient.queryByIdWithPassThroughBySetNil(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -214,11 +186,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @param time 商品key过期时间
      */
     public void saveShopToRedis(Long id, Long time) {
-        Shop shop = shopMapper.selectById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(time));
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        //查询之前读取版本号，查询期间商铺被修改过就不写入，避免旧数据覆盖掉删除缓存的结果
+        cacheClient.refreshWithLogicalExpire(
+                RedisConstants.CACHE_SHOP_KEY + id, () -> shopMapper.selectById(id), time, TimeUnit.SECONDS);
     }
 
     /**
@@ -228,6 +198,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * 3.保证更新数据库和删除缓存这一系列操作的原子性（事务）
      * 3.1单体项目直接加@Transaction
      * 3.2分布式项目使用TCC等分布式事务方案
+     * 4.删除缓存要等事务提交之后，否则提交之前的请求会把旧数据重新写入缓存；再延迟删除一次兜底
      */
     @Override
     @Transactional
@@ -236,10 +207,621 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("商铺id不能为空");
         }
+        //更新之前的类型，类型变了要从原来的排行中删除
+        Shop old = getById(id);
         //更新数据库
         shopMapper.updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //事务提交之后删除缓存，同时广播给所有节点删除本地缓存，之后再延迟删除一次
+        cacheInvalidator.invalidate(RedisConstants.CACHE_SHOP_KEY + id);
+        //事务提交之后用数据库中最新的数据更新排行，本节点直接更新搜索索引，其他节点通过广播更新
+        afterCommit(() -> {
+            updateShopTypeRank(id, old, getById(id));
+            onShopChanged(id);
+            publishShopChanged(id);
+        });
         return Result.ok();
     }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 这个id之前可能被查询过，缓存中有空值
+        cacheInvalidator.invalidate(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        // 加入所属类型的排行
+        updateShopTypeRank(shop.getId(), null, shop);
+        // 本节点直接更新，其他节点通过广播更新
+        onShopChanged(shop.getId());
+        publishShopChanged(shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    /**
+     * 广播商铺变更，消息带上本节点的标识，本节点已经直接处理过，收到自己发出的消息时跳过
+     */
+    private void publishShopChanged(Long id) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_CHANGED_CHANNEL, nodeId + ":" + id);
+    }
+
+    @Override
+    public void onShopChangedMessage(String message) {
+        int separator = message.lastIndexOf(':');
+        if (separator >= 0 && nodeId.equals(message.substring(0, separator))) {
+            return;
+        }
+        onShopChanged(Long.valueOf(message.substring(separator + 1)));
+    }
+
+    /**
+     * 商铺新增或修改时调用，本节点直接调用，其他节点收到广播后调用
+     *
+     * @param id 商铺id
+     */
+    @Override
+    public void onShopChanged(Long id) {
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, id);
+        LocalBloomFilter building = buildingBloomFilter;
+        if (building != null) {
+            building.put(id);
+        }
+        // 用数据库中最新的数据更新搜索索引
+        Shop shop = getById(id);
+        indexShop(searchIndex, id, shop);
+        Rebuild<NgramIndex> search = searchRebuild;
+        if (search != null) {
+            synchronized (search) {
+                search.changed.add(id);
+                indexShop(search.target, id, shop);
+            }
+        }
+        // 空间索引，没有开启本地空间索引时不维护
+        if (!localGeoIndex) {
+            return;
+        }
+        indexShop(geoIndex, id, shop);
+        Rebuild<GeoGridIndex<Shop>> geo = geoRebuild;
+        if (geo != null) {
+            synchronized (geo) {
+                geo.changed.add(id);
+                indexShop(geo.target, id, shop);
+            }
+        }
+    }
+
+    /**
+     * 项目启动时用tb_shop中的数据初始化布隆过滤器、搜索索引和空间索引，每个各扫描一遍tb_shop
+     * 没有开启本地空间索引时不构建空间索引
+     */
+    @PostConstruct
+    public void initLocalIndexes() {
+        rebuildBloomFilter();
+        rebuildSearchIndex();
+        if (localGeoIndex) {
+            rebuildGeoIndex();
+        }
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        if (StrUtil.isBlank(name)) {
+            // 没有关键字时按原来的方式分页查询
+            Page<Shop> page = query().page(new Page<>(current, size));
+            return Result.ok(page.getRecords());
+        }
+        // 从本地搜索索引中取出一页商铺id，再批量查询商铺详情
+        List<Long> ids = searchIndex.search(name, (Math.max(current, 1) - 1) * size, size);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(
+                RedisConstants.CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    @Override
+    public Map<String, Object> searchIndexStats() {
+        return searchIndex.stats();
+    }
+
+    /**
+     * 重建商铺搜索索引，构建完成后替换掉旧的索引，重建期间旧的索引照常使用
+     * 按id分批查询，只查询建索引需要的列；重建期间修改过的商铺以增量更新为准，跳过之前读到的旧数据
+     */
+    @Override
+    public synchronized void rebuildSearchIndex() {
+        NgramIndex index = new NgramIndex();
+        Rebuild<NgramIndex> rebuild = new Rebuild<>(index);
+        searchRebuild = rebuild;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = list(new QueryWrapper<Shop>()
+                        .select("id", "name", "area", "address", "score")
+                        .gt("id", lastId).orderByAsc("id").last("limit 1000"));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                synchronized (rebuild) {
+                    for (Shop shop : shops) {
+                        if (!rebuild.changed.contains(shop.getId())) {
+                            indexShop(index, shop.getId(), shop);
+                        }
+                    }
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            searchIndex = index;
+        } finally {
+            searchRebuild = null;
+        }
+        log.info("商铺搜索索引构建完成: {}", index.stats());
+    }
+
+    private static void indexShop(NgramIndex index, Long id, Shop shop) {
+        if (shop == null) {
+            index.remove(id);
+        } else {
+            index.put(id, shop.getName(), shop.getArea(), shop.getAddress(), shop.getScore());
+        }
+    }
+
+    @Override
+    public Map<String, Object> geoIndexStats() {
+        GeoGridIndex<Shop> index = geoIndex;
+        return index == null ? Collections.emptyMap() : index.stats();
+    }
+
+    /**
+     * 重建本地空间索引，构建完成后替换掉旧的索引，重建期间旧的索引照常使用
+     * 按id分批查询，商铺数据随点一起保存，查询附近商铺时直接返回；重建期间修改过的商铺以增量更新为准
+     */
+    @Override
+    public synchronized void rebuildGeoIndex() {
+        if (!localGeoIndex) {
+            log.info("没有开启本地空间索引，跳过构建");
+            return;
+        }
+        GeoGridIndex<Shop> index = new GeoGridIndex<>(geoCellDegrees);
+        Rebuild<GeoGridIndex<Shop>> rebuild = new Rebuild<>(index);
+        geoRebuild = rebuild;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = list(new QueryWrapper<Shop>()
+                        .gt("id", lastId).orderByAsc("id").last("limit 1000"));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                synchronized (rebuild) {
+                    for (Shop shop : shops) {
+                        if (!rebuild.changed.contains(shop.getId())) {
+                            indexShop(index, shop.getId(), shop);
+                        }
+                    }
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            geoIndex = index;
+        } finally {
+            geoRebuild = null;
+        }
+        log.info("商铺空间索引构建完成: {}", index.stats());
+    }
+
+    /**
+     * 没有坐标或类型的商铺不放进空间索引
+     */
+    private static void indexShop(GeoGridIndex<Shop> index, Long id, Shop shop) {
+        if (shop == null || shop.getX() == null || shop.getY() == null || shop.getTypeId() == null) {
+            index.remove(id);
+        } else {
+            index.put(id, shop.getTypeId(), shop.getX(), shop.getY(), shop);
+        }
+    }
+
+    /**
+     * 重建商铺布隆过滤器，可以在线调用，构建完成后再替换掉旧的过滤器，重建期间旧的过滤器照常使用
+     * 按id分批查询，避免一次把整张表加载到内存中
+     */
+    @Override
+    public synchronized void rebuildBloomFilter() {
+        // 按当前数据量的2倍预留容量，给之后新增的商铺留出空间
+        long count = count();
+        LocalBloomFilter bloomFilter = new LocalBloomFilter(Math.max(count * 2, 1024), RedisConstants.SHOP_BLOOM_FPP);
+        // 先发布再扫描表，扫描期间新增的商铺也会被加进来
+        buildingBloomFilter = bloomFilter;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Object> ids = listObjs(new QueryWrapper<Shop>()
+                        .select("id").gt("id", lastId).orderByAsc("id").last("limit 1000"));
+                if (ids.isEmpty()) {
+                    break;
+                }
+                for (Object id : ids) {
+                    bloomFilter.put(id);
+                }
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+            cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, bloomFilter);
+        } finally {
+            buildingBloomFilter = null;
+        }
+        log.info("商铺布隆过滤器构建完成，商铺数量: {}, 位数组长度: {}, 哈希函数个数: {}",
+                bloomFilter.getInsertions(), bloomFilter.getBitSize(), bloomFilter.getHashCount());
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, String sortBy, Double x, Double y,
+                                  Double lastDistance, Long lastId) {
+        if (x != null && y != null) {
+            NearbyCursor cursor = NearbyCursor.of(lastDistance, lastId);
+            return localGeoIndex
+                    ? queryShopByTypeNearbyLocal(typeId, current, sortBy, x, y, cursor)
+                    : queryShopByTypeNearby(typeId, current, x, y, cursor);
+        }
+        String field = rankField(sortBy);
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        long from = (long) (Math.max(current, 1) - 1) * size;
+        // 1.从排行中取出一页商铺id，不需要像limit offset那样扫描前面的行
+        Set<String> members = stringRedisTemplate.opsForZSet()
+                .reverseRange(rankKey(field, typeId), from, from + size - 1);
+        if (members == null || members.isEmpty()) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.SHOP_TYPE_RANK_READY_KEY))) {
+                return Result.ok(Collections.emptyList());
+            }
+            // 2.排行还没有构建，查询数据库
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .orderByDesc(field)
+                    .page(new Page<>(current, size));
+            return Result.ok(page.getRecords());
+        }
+        // 3.批量查询商铺详情，本地缓存和redis中没有的一次查询数据库
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(
+                RedisConstants.CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    /**
+     * 按距离查询附近的商铺，用GEORADIUS按距离升序查询，传了游标时只返回(距离, id)排在游标之后的商铺
+     * 游标是上一页最后一个商铺的距离和id，翻页期间商铺移动或新增时不会重复返回或跳过，没有游标时按页码跳过前面几页
+     * 距离附加在商铺的副本上，本地缓存中的商铺对象不修改
+     */
+    private Result queryShopByTypeNearby(Integer typeId, Integer current, Double x, Double y, NearbyCursor cursor) {
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        Circle within = new Circle(new Point(x, y), new Distance(nearbyRadius, RedisGeoCommands.DistanceUnit.METERS));
+        // 1.按距离升序查询半径内的前limit个商铺，带上距离
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> page = nearbyPage(limit -> {
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                    RedisConstants.SHOP_GEO_KEY + typeId, within,
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(limit));
+            return results == null ? Collections.emptyList() : results.getContent();
+        }, result -> result.getDistance().getValue(), result -> Long.valueOf(result.getContent().getName()),
+                cursor, current, size);
+        if (page.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 2.取出id和距离
+        List<Long> ids = new ArrayList<>(size);
+        Map<Long, Double> distances = new HashMap<>(size);
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : page) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distances.put(id, result.getDistance().getValue());
+        }
+        // 3.批量查询商铺详情，按距离的顺序返回
+        Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(
+                RedisConstants.CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        List<Shop> list = new ArrayList<>(shops.size());
+        for (Long id : ids) {
+            Shop shop = shops.get(id);
+            if (shop == null) {
+                continue;
+            }
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(id));
+            list.add(copy);
+        }
+        return Result.ok(list);
+    }
+
+    /**
+     * 从按距离升序的结果中取出一页
+     * GEO索引不能从某个距离开始查询，有游标时先按页码估计要取的条数，取出后过滤掉游标之前的，
+     * 不够一页并且结果被截断时加倍再取；最后一个距离上的商铺可能没有取全，截断时不使用，保证不跳过同距离的商铺
+     * @param fetch 按距离升序查询前limit条
+     * @param cursor 游标，为null时第一页从头开始，后面的页按页码跳过前面几页
+     * @param current 页码，有游标时用来估计要取的条数
+     * @param size 每页条数
+     */
+    private static <H> List<H> nearbyPage(Function<Integer, List<H>> fetch, Function<H, Double> distanceOf,
+                                          Function<H, Long> idOf, NearbyCursor cursor, Integer current, int size) {
+        int from = (Math.max(current, 1) - 1) * size;
+        if (cursor == null && from > 0) {
+            List<H> results = fetch.apply(from + size);
+            return results.size() <= from ? Collections.emptyList() : results.subList(from, results.size());
+        }
+        // 第一页也按(距离, id)排序，和之后用游标翻页的顺序一致
+        NearbyCursor after = cursor == null ? NearbyCursor.START : cursor;
+        Comparator<H> order = Comparator.comparing(distanceOf).thenComparing(idOf);
+        int limit = from + size;
+        while (true) {
+            List<H> results = fetch.apply(limit);
+            boolean truncated = results.size() >= limit;
+            double boundary = results.isEmpty() ? 0 : distanceOf.apply(results.get(results.size() - 1));
+            List<H> page = new ArrayList<>();
+            for (H result : results) {
+                double distance = distanceOf.apply(result);
+                if (after.isAfter(distance, idOf.apply(result)) && (!truncated || distance < boundary)) {
+                    page.add(result);
+                }
+            }
+            if (page.size() >= size || !truncated) {
+                page.sort(order);
+                return page.size() <= size ? page : page.subList(0, size);
+            }
+            limit *= 2;
+        }
+    }
+
+    /**
+     * 从本地网格索引中查询附近的商铺，点上带着商铺数据，不需要访问redis
+     * 不指定排序字段时按距离排序，指定时按排序字段和距离综合排序
+     */
+    private Result queryShopByTypeNearbyLocal(Integer typeId, Integer current, String sortBy, Double x, Double y,
+                                              NearbyCursor cursor) {
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        int from = (Math.max(current, 1) - 1) * size;
+        List<GeoGridIndex.Hit<Shop>> hits;
+        if (sortBy == null || !RANK_FIELDS.containsKey(sortBy)) {
+            GeoGridIndex<Shop> index = geoIndex;
+            hits = nearbyPage(limit -> index.nearest(typeId.longValue(), x, y, nearbyRadius, limit),
+                    GeoGridIndex.Hit::getDistance, GeoGridIndex.Hit::getId, cursor, current, size);
+        } else {
+            // 综合排序的分数和距离不是单调关系，仍然按页码分页
+            Function<Shop, Integer> field = RANK_FIELDS.get(sortBy);
+            hits = geoIndex.ranked(typeId.longValue(), x, y, nearbyRadius, shop -> {
+                Integer value = field.apply(shop);
+                return value == null ? 0 : value;
+            }, nearbyDecay, from, size);
+        }
+        // 索引中的商铺是共享的，距离附加在副本上
+        List<Shop> list = new ArrayList<>(hits.size());
+        for (GeoGridIndex.Hit<Shop> hit : hits) {
+            Shop copy = BeanUtil.copyProperties(hit.getValue(), Shop.class);
+            copy.setDistance(hit.getDistance());
+            list.add(copy);
+        }
+        return Result.ok(list);
+    }
+
+    /**
+     * 全量重建按类型的商铺排行和GEO索引，按id分批查询，写入临时key，全部写完后改名替换，重建期间旧的数据照常使用
+     * 重建期间的新增和修改同时写入临时key，不会在替换时丢失；按页写入时跳过重建期间修改过的商铺，旧数据不会覆盖新数据
+     */
+    @Override
+    public synchronized void rebuildShopTypeRank() {
+        // 清理上次重建失败留下的临时key
+        List<String> existing = scanKeys(RedisConstants.SHOP_TYPE_RANK_KEY + "*");
+        existing.addAll(scanKeys(RedisConstants.SHOP_GEO_KEY + "*"));
+        List<String> leftovers = existing.stream().filter(k -> k.endsWith(RANK_BUILDING_SUFFIX)).collect(Collectors.toList());
+        if (!leftovers.isEmpty()) {
+            stringRedisTemplate.delete(leftovers);
+        }
+        Set<Long> typeIds = ConcurrentHashMap.newKeySet();
+        Rebuild<Set<Long>> rebuild = new Rebuild<>(typeIds);
+        rankRebuild = rebuild;
+        int count = 0;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = list(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "score", "sold", "comments", "x", "y")
+                        .gt("id", lastId).orderByAsc("id").last("limit 1000"));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                // 和增量更新互斥，检查和写入之间不会插入增量更新
+                synchronized (rebuild) {
+                    stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        StringRedisConnection conn = (StringRedisConnection) connection;
+                        for (Shop shop : shops) {
+                            if (shop.getTypeId() == null || rebuild.changed.contains(shop.getId())) {
+                                continue;
+                            }
+                            typeIds.add(shop.getTypeId());
+                            for (String field : RANK_FIELDS.keySet()) {
+                                conn.zAdd(rankKey(field, shop.getTypeId()) + RANK_BUILDING_SUFFIX,
+                                        rankScore(field, shop), shop.getId().toString());
+                            }
+                            if (shop.getX() != null && shop.getY() != null) {
+                                conn.geoAdd(RedisConstants.SHOP_GEO_KEY + shop.getTypeId() + RANK_BUILDING_SUFFIX,
+                                        new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                            }
+                        }
+                        return null;
+                    });
+                }
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            // 临时key改名替换正在使用的排行和GEO索引，已经没有商铺的类型删除
+            Set<String> stale = existing.stream().filter(k -> !k.endsWith(RANK_BUILDING_SUFFIX)).collect(Collectors.toSet());
+            for (Long typeId : typeIds) {
+                List<String> keys = new ArrayList<>();
+                for (String field : RANK_FIELDS.keySet()) {
+                    keys.add(rankKey(field, typeId));
+                }
+                keys.add(RedisConstants.SHOP_GEO_KEY + typeId);
+                for (String key : keys) {
+                    if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key + RANK_BUILDING_SUFFIX))) {
+                        stringRedisTemplate.rename(key + RANK_BUILDING_SUFFIX, key);
+                        stale.remove(key);
+                    }
+                }
+            }
+            if (!stale.isEmpty()) {
+                stringRedisTemplate.delete(stale);
+            }
+            stringRedisTemplate.opsForValue().set(RedisConstants.SHOP_TYPE_RANK_READY_KEY, String.valueOf(System.currentTimeMillis()));
+        } finally {
+            rankRebuild = null;
+        }
+        log.info("商铺类型排行和GEO索引构建完成，商铺数量: {}, 类型数量: {}", count, typeIds.size());
+    }
+
+    /**
+     * 商铺新增或修改后更新排行和GEO索引，类型变了从原来类型的排行和GEO索引中删除
+     * @param id 商铺id
+     * @param old 修改之前的商铺，新增时为null
+     * @param current 修改之后的商铺，已经不存在时为null
+     */
+    private void updateShopTypeRank(Long id, Shop old, Shop current) {
+        Rebuild<Set<Long>> rebuild = rankRebuild;
+        if (rebuild == null) {
+            writeShopTypeRank(id, old, current, Collections.singletonList(""));
+            return;
+        }
+        // 重建期间同时写入临时key，并记下这个商铺，重建时之前读到的旧数据不再写入
+        synchronized (rebuild) {
+            rebuild.changed.add(id);
+            writeShopTypeRank(id, old, current, Arrays.asList("", RANK_BUILDING_SUFFIX));
+            if (current != null && current.getTypeId() != null) {
+                rebuild.target.add(current.getTypeId());
+            }
+        }
+    }
+
+    private void writeShopTypeRank(Long id, Shop old, Shop current, List<String> suffixes) {
+        Long oldType = old == null ? null : old.getTypeId();
+        Long newType = current == null ? null : current.getTypeId();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String field : RANK_FIELDS.keySet()) {
+                for (String suffix : suffixes) {
+                    if (oldType != null && !oldType.equals(newType)) {
+                        conn.zRem(rankKey(field, oldType) + suffix, id.toString());
+                    }
+                    if (newType != null) {
+                        conn.zAdd(rankKey(field, newType) + suffix, rankScore(field, current), id.toString());
+                    }
+                }
+            }
+            // GEO索引也是有序集合，可以用ZREM删除
+            for (String suffix : suffixes) {
+                if (oldType != null && !oldType.equals(newType)) {
+                    conn.zRem(RedisConstants.SHOP_GEO_KEY + oldType + suffix, id.toString());
+                }
+                if (newType == null) {
+                    continue;
+                }
+                if (current.getX() != null && current.getY() != null) {
+                    conn.geoAdd(RedisConstants.SHOP_GEO_KEY + newType + suffix,
+                            new Point(current.getX(), current.getY()), id.toString());
+                } else {
+                    conn.zRem(RedisConstants.SHOP_GEO_KEY + newType + suffix, id.toString());
+                }
+            }
+            return null;
+        });
+    }
+
+    private String rankField(String sortBy) {
+        if (sortBy != null && RANK_FIELDS.containsKey(sortBy)) {
+            return sortBy;
+        }
+        return RANK_FIELDS.containsKey(defaultRankField) ? defaultRankField : "score";
+    }
+
+    private static String rankKey(String field, Number typeId) {
+        return RedisConstants.SHOP_TYPE_RANK_KEY + field + ":" + typeId;
+    }
+
+    private static double rankScore(String field, Shop shop) {
+        Integer value = RANK_FIELDS.get(field).apply(shop);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * 用SCAN查找匹配的key，排行的key数量只有类型数乘以排序字段数
+     */
+    private List<String> scanKeys(String pattern) {
+        List<String> keys = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(1000).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(options))) {
+            while (cursor != null && cursor.hasNext()) {
+                keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭SCAN游标失败", e);
+        }
+        return keys;
+    }
+
+    /**
+     * 在事务中调用时等事务提交之后再执行，否则直接执行
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * 正在重建的数据结构和重建期间增量更新过的商铺id
+     * 按页写入和增量更新都锁住这个对象，按页写入时跳过增量更新过的商铺，之前读到的旧数据不会覆盖新数据
+     */
+    private static class Rebuild<T> {
+        private final T target;
+        private final Set<Long> changed = new HashSet<>();
+
+        Rebuild(T target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * 附近商铺的翻页游标，上一页最后一个商铺的距离和id
+     */
+    private static class NearbyCursor {
+        // 第一页之前
+        private static final NearbyCursor START = new NearbyCursor(Double.NEGATIVE_INFINITY, Long.MIN_VALUE);
+
+        private final double distance;
+        private final long id;
+
+        private NearbyCursor(double distance, long id) {
+            this.distance = distance;
+            this.id = id;
+        }
+
+        /**
+         * @return 没有传游标时返回null
+         */
+        static NearbyCursor of(Double distance, Long id) {
+            return distance == null || id == null ? null : new NearbyCursor(distance, id);
+        }
+
+        /**
+         * 按(距离, id)排在游标之后
+         */
+        boolean isAfter(double distance, long id) {
+            return distance > this.distance || (distance == this.distance && id > this.id);
+        }
+    }
 }
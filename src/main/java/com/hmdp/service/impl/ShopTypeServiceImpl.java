@@ -3,20 +3,28 @@ package com.hmdp.service.impl;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_CHANGED_CHANNEL;
 
 /**
  * <p>
@@ -36,8 +44,114 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Resource
     private ShopTypeMapper shopTypeMapper;
 
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 商铺类型目录的本地快照，版本号变化时整体替换
+    private volatile ShopTypeSnapshot snapshot;
+
+    private static final DefaultRedisScript<Long> REPLACE_LIST_SCRIPT;
+
+    static {
+        REPLACE_LIST_SCRIPT = new DefaultRedisScript<>();
+        REPLACE_LIST_SCRIPT.setLocation(new ClassPathResource("replaceList.lua"));
+        REPLACE_LIST_SCRIPT.setResultType(Long.class);
+    }
+
     @Override
     public Result queryTypes() {
+        return Result.ok(currentSnapshot().types);
+    }
+
+    @Override
+    public byte[] queryTypesJson() {
+        // 直接返回预先序列化好的响应，调用方只能读取不能修改
+        return currentSnapshot().json;
+    }
+
+    @Override
+    public void refreshTypes() {
+        // 用数据库中的数据整体替换redis中的列表并自增版本号，各节点收到通知或轮询到新版本后重新加载
+        cacheTypes();
+        Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, String.valueOf(version));
+    }
+
+    @Override
+    public int cacheTypes() {
+        List<String> jsons = new ArrayList<>();
+        for (ShopType shopType : loadTypes()) {
+            jsons.add(JSONUtil.toJsonStr(shopType));
+        }
+        // 删除和写入在一个脚本中完成，不会出现并发写入时列表中的类型重复
+        stringRedisTemplate.execute(REPLACE_LIST_SCRIPT, Collections.singletonList(CACHE_SHOP_TYPE_KEY), jsons.toArray());
+        return jsons.size();
+    }
+
+    @Override
+    public void onTypesChanged() {
+        refreshSnapshot();
+    }
+
+    /**
+     * 定时检查版本号，兜底广播丢失的情况
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.shop-type.poll-interval:5000}")
+    public void pollVersion() {
+        try {
+            refreshSnapshot();
+        } catch (Exception e) {
+            // 刷新失败继续使用旧快照，下次轮询再试
+            log.error("刷新商铺类型快照失败", e);
+        }
+    }
+
+    private ShopTypeSnapshot currentSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(CACHE_SHOP_TYPE_KEY);
+        metrics.requests.increment();
+        if (current != null) {
+            metrics.localHits.increment();
+            return current;
+        }
+        // 启动后第一次访问，同步加载
+        return refreshSnapshot();
+    }
+
+    /**
+     * redis中的版本号和本地快照不一致时重新加载，新快照构建完成后整体替换，读取方不会看到一半的数据
+     * 先读版本号再加载数据，加载期间又发生修改时版本号会再次变化，下次刷新还会重新加载
+     */
+    private synchronized ShopTypeSnapshot refreshSnapshot() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        if (version == null) {
+            version = "0";
+        }
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && current.version.equals(version)) {
+            return current;
+        }
+        List<ShopType> types = Collections.unmodifiableList(loadTypes());
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化商铺类型失败", e);
+        }
+        ShopTypeSnapshot next = new ShopTypeSnapshot(version, types, json);
+        snapshot = next;
+        log.debug("商铺类型快照已更新，版本: {}，共{}条", version, types.size());
+        return next;
+    }
+
+    /**
+     * 从数据库中查询商铺类型列表，快照直接用数据库中的数据构建，不读取redis中的列表
+     * 之前各节点收到通知后同时发现redis中的列表为空，都会写入一遍，列表中的类型会重复
+     */
+    private List<ShopType> loadTypes() {
         /*
             方式1:存入redis的值为string类型的方式
             //先从缓存中查询
@@ -57,29 +171,31 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
                 return Result.ok(shopTypesFromDatabase);
             }
         */
-        //方式2:存入redis的值为list类型的方式
-        //先从缓存中查询
-        List<String> range = stringRedisTemplate.opsForList().range(CACHE_SHOP_TYPE_KEY, 0, -1);
-        List<ShopType> result = new ArrayList<>();
-        if (!CollectionUtils.isEmpty(range)) {
-            //缓存中如果有数据
-            for (String shopTypeJson : range) {
-                ShopType shopType = JSONUtil.toBean(shopTypeJson, ShopType.class);
-                result.add(shopType);
-            }
-            return Result.ok(result);
-        }
-        //缓存中如果没有数据,从数据库中查询
+        //方式2:存入redis的值为list类型的方式，列表只由cacheTypes()整体写入
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(CACHE_SHOP_TYPE_KEY);
+        metrics.misses.increment();
         QueryWrapper<ShopType> wrapper = new QueryWrapper<>();
         wrapper.orderByAsc("sort");
-        result = shopTypeMapper.selectList(wrapper);
-        List<String> shopTypeJsons = new ArrayList<>();
-        for (ShopType shopType : result) {
-            String shopTypeJson = JSONUtil.toJsonStr(shopType);
-            shopTypeJsons.add(shopTypeJson);
+        long begin = System.nanoTime();
+        List<ShopType> result = shopTypeMapper.selectList(wrapper);
+        metrics.dbLatency.record(System.nanoTime() - begin);
+        return result;
+    }
+
+    /**
+     * 商铺类型目录的不可变快照，包括序列化好的响应
+     */
+    private static class ShopTypeSnapshot {
+        // 对应redis中的版本号
+        private final String version;
+        private final List<ShopType> types;
+        // Result.ok(types)序列化后的字节
+        private final byte[] json;
+
+        ShopTypeSnapshot(String version, List<ShopType> types, byte[] json) {
+            this.version = version;
+            this.types = types;
+            this.json = json;
         }
-        //将查询到的数据放入缓存
-        stringRedisTemplate.opsForList().rightPushAll(CACHE_SHOP_TYPE_KEY, shopTypeJsons);
-        return Result.ok(result);
     }
 }
@@ -12,6 +12,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -50,6 +51,23 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    /**
+     * 修改用户之后删除缓存的用户信息，博客列表和点赞列表中的昵称、头像不会一直是旧的
+     * @param entity 用户
+     * @return 是否修改成功
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            cacheInvalidator.invalidate(CACHE_USER_KEY + entity.getId());
+        }
+        return updated;
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //校验手机号格式
@@ -184,6 +202,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(SystemConstants.USER_NICK_NAME_PREFIX + RandomUtil.randomString(9));
         user.setPhone(phone);
         userMapper.insert(user);
+        // 之前按这个id查询时可能缓存了空值
+        cacheInvalidator.invalidate(CACHE_USER_KEY + user.getId());
         return user;
     }
 }
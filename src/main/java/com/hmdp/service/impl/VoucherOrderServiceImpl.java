@@ -8,9 +8,13 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBatcher;
+import com.hmdp.utils.SegmentedStock;
 import com.hmdp.utils.SimpleLock;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
@@ -25,6 +29,7 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.List;
 
 import static com.hmdp.utils.RabbitMQConstants.ASYNC_CREATE_ORDER_KEY;
 import static com.hmdp.utils.RabbitMQConstants.ASYNC_ORDER_EXCHANGE;
@@ -44,6 +49,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private SeckillVoucherMapper seckillVoucherMapper;
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     @Resource
     private VoucherOrderMapper voucherOrderMapper;
 
@@ -59,14 +67,24 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RabbitTemplate rabbitTemplate;
 
+    @Resource
+    private SoldOutFlags soldOutFlags;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private SeckillBatcher seckillBatcher;
+
 
     // 加载lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("secondKill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
     // 创建阻塞队列
@@ -113,8 +131,15 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     // @Transactional
     public Result seckill(Long voucherId) {
-        //根据id查询秒杀优惠券信息
-        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(voucherId);
+        //本节点已经知道售罄了，不用再查询数据库和执行lua脚本
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足！");
+        }
+        //查询秒杀优惠券的开始和结束时间，本地缓存中没有时才查询redis和数据库；库存由lua脚本判断
+        SeckillVoucher seckillVoucher = seckillVoucherService.querySaleWindow(voucherId);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
         //判断秒杀活动是否已经开始
         LocalDateTime beginTime = seckillVoucher.getBeginTime();
         if (LocalDateTime.now().isBefore(beginTime)) {
@@ -125,11 +150,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (LocalDateTime.now().isAfter(endTime)) {
             return Result.fail("秒杀活动已经结束！");
         }
-        //判断是否还有库存
-        Integer stock = seckillVoucher.getStock();
-        if (stock < 1) {
-            return Result.fail("库存不足！");
-        }
 
         // 锁实现下单业务，下面三个方法，第一个是synchronized锁，第二个是基于redis自己实现的分布式锁，第三个是redisson实现分布式锁
         // VoucherOrder voucherOrder = updateStockAndSaveOrder3(voucherId);
@@ -142,18 +162,51 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 使用redis调用lua脚本的方式实现下单业务
         Long userId = UserHolder.getUser().getId();
-        // 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString()
-        );
+        // 执行lua脚本，lua脚本中再原子地校验一次秒杀时间；分段库存的秒杀券在用户所属的分段中扣减
+        Integer segments = seckillVoucher.getSegments();
+        // 执行之前记下补充库存的代数，执行期间补充过库存时不标记售罄
+        long generation = soldOutFlags.generation(voucherId);
+        boolean segmented = segments != null && segments > 1;
+        int result = segmented
+                ? segmentedStock.acquire(voucherId, userId, segments)
+                : admit(voucherId, userId);
+        if (result == 5 && !segmented) {
+            // redis中没有秒杀券信息（例如redis重启过），从本地缓存写回之后重试
+            seckillVoucherService.cacheSaleWindow(seckillVoucher);
+            result = executeSeckillScript(voucherId, userId);
+        } else if (result == SegmentedStock.MISSING && segmented) {
+            // redis中没有用户所属的分段，按数据库中的剩余库存补回丢失的分段之后重试
+            SeckillVoucher current = seckillVoucherService.getById(voucherId);
+            if (current != null) {
+                segmentedStock.restore(current.setSegments(segments));
+                result = segmentedStock.acquire(voucherId, userId, segments);
+            }
+        }
+        if (result == SeckillBatcher.BUSY) {
+            // 批量执行迟迟没有返回，结果未知，扣减的库存会被退回
+            return Result.fail("系统繁忙，请稍后重试！");
+        }
         // 判断结果是否为0
-        assert result != null;
-        if (result.intValue() != 0) {
+        if (result == 3) {
+            return Result.fail("秒杀活动未开始！");
+        }
+        if (result == 4) {
+            return Result.fail("秒杀活动已经结束！");
+        }
+        if (result == 5) {
+            return Result.fail("秒杀券不存在！");
+        }
+        if (result == 6) {
+            // redis中没有库存，可能是还没有预热，不能当作售罄
+            return Result.fail("秒杀券库存未就绪！");
+        }
+        if (result != 0) {
             // 不为0，根据lua脚本中我们自己写的逻辑，代表没有购买资格
-            return Result.fail(result.intValue() == 1 ? "库存不足！" : "不能重复下单！");
+            if (result == 1) {
+                // 库存不足，标记售罄并广播，之后的请求在本地直接拒绝
+                soldOutFlags.markSoldOut(voucherId, generation);
+            }
+            return Result.fail(result == 1 ? "库存不足！" : "不能重复下单！");
         }
         // 为0了，有购买资格，把下订单信息保存到阻塞队列中
         VoucherOrder voucherOrder = new VoucherOrder();
@@ -185,6 +238,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(orderId);
     }
 
+    /**
+     * 和其他并发的秒杀请求合并成一批执行lua脚本，没有开启批量或者队列满了时单独执行
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @return 和secondKill.lua的返回值一致
+     */
+    private int admit(Long voucherId, Long userId) {
+        Integer result = seckillBatcher.admit(voucherId, userId);
+        return result != null ? result : executeSeckillScript(voucherId, userId);
+    }
+
+    /**
+     * 单独执行秒杀的lua脚本，和批量准入是同一个脚本，只传一个请求
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @return 0下单成功，1库存不足，2重复下单，3未开始，4已结束，5redis中没有秒杀券信息，6redis中没有库存
+     */
+    private int executeSeckillScript(Long voucherId, Long userId) {
+        List<?> results = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Collections.emptyList(),
+                String.valueOf(System.currentTimeMillis()),
+                voucherId.toString(),
+                userId.toString()
+        );
+        assert results != null;
+        return ((Number) results.get(0)).intValue();
+    }
+
     /**
      * 单服务或者单体项目，一人一单业务可以使用synchronized锁
      * 如果是将服务集群部署，synchronized锁就失效了，synchronized只能保证单个JVM内部的多个线程之间互斥
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,13 +8,23 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.JsonResponseWriter;
+import com.hmdp.utils.SegmentedStock;
+import com.hmdp.utils.SoldOutFlags;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_TTL;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -33,6 +44,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private JsonResponseWriter jsonResponseWriter;
+
+    @Resource
+    private SoldOutFlags soldOutFlags;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -41,6 +67,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         return Result.ok(vouchers);
     }
 
+    @Override
+    public byte[] queryVoucherOfShopJson(Long shopId) {
+        // 缓存的就是序列化好的列表，命中时不需要反序列化，直接拼到响应中
+        return cacheClient.queryRaw(CACHE_VOUCHER_LIST_KEY, shopId,
+                id -> jsonResponseWriter.toJson(getBaseMapper().queryVoucherOfShop(id)),
+                CACHE_VOUCHER_LIST_TTL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        cacheInvalidator.invalidate(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -52,8 +93,53 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 分段数和秒杀券一起保存，redis中的记录丢失之后也不会按不分段的方式再卖一次
+        seckillVoucher.setSegments(Math.max(segmentedStock.getSegments(), 1));
         seckillVoucherService.save(seckillVoucher);
-        // 优惠券入库的同时，对优惠券库存进行缓存预热
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 优惠券入库的同时，对优惠券库存和秒杀时间进行缓存预热，秒杀请求不再查询数据库
+        // 等事务提交之后再写入redis，回滚时redis中不会留下数据库里没有的秒杀券
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (seckillVoucher.getSegments() > 1) {
+                    // 库存分散到多个分段
+                    segmentedStock.init(seckillVoucher);
+                } else {
+                    stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+                }
+                seckillVoucherService.cacheSaleWindow(seckillVoucher);
+            }
+        });
+        cacheInvalidator.invalidate(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+    }
+
+    @Override
+    @Transactional
+    public boolean addSeckillStock(Long voucherId, int count) {
+        Voucher voucher = getById(voucherId);
+        if (voucher == null) {
+            return false;
+        }
+        // 和扣减库存一样在数据库层面计算
+        UpdateWrapper<SeckillVoucher> updateWrapper = new UpdateWrapper<>();
+        updateWrapper.setSql("stock = stock + " + count).eq("voucher_id", voucherId);
+        if (!seckillVoucherService.update(updateWrapper)) {
+            return false;
+        }
+        cacheInvalidator.invalidate(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+        // 事务提交之后先增加redis中的库存再清除售罄标记，清除之后的请求一定能看到新的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                SeckillVoucher window = seckillVoucherService.querySaleWindow(voucherId);
+                if (window != null && window.getSegments() != null && window.getSegments() > 1) {
+                    segmentedStock.add(voucherId, count, window.getSegments());
+                } else {
+                    stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+                }
+                soldOutFlags.clearSoldOut(voucherId);
+            }
+        });
+        return true;
     }
 }
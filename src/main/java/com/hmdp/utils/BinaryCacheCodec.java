@@ -0,0 +1,392 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制编码，按字段顺序写值，不写字段名，也不需要反射
+ * 数据格式：魔数(1字节) + 格式版本(1字节) + 类型标记(1字节) + 数据
+ * 逻辑过期数据：魔数 + 格式版本 + 逻辑过期标记 + 过期时间(固定8字节) + 重建耗时(固定4字节) + 内部数据的类型标记 + 内部数据
+ * 过期时间在固定的位置上，只需要读前11个字节就能知道是否过期
+ * 格式版本1的逻辑过期数据没有重建耗时，读取时兼容
+ * 每条记录开头用一个变长整数标记哪些字段不为null，整数使用zigzag变长编码
+ * Shop、ShopType、UserDTO有专门的编码方式，其他类型仍然使用json
+ * @author CHAN
+ * @since 2022/4/23
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    // 魔数，json不可能以这个字节开头，读取时据此区分新旧格式
+    public static final byte MAGIC = (byte) 0xC5;
+    public static final byte FORMAT_VERSION = 2;
+    // 逻辑过期时间所在的位置
+    public static final int EXPIRE_OFFSET = 3;
+
+    private static final byte TAG_JSON = 0;
+    private static final byte TAG_LOGICAL = 1;
+    private static final byte TAG_SHOP = 2;
+    private static final byte TAG_SHOP_TYPE = 3;
+    private static final byte TAG_USER = 4;
+
+    private final Map<Class<?>, Byte> tagsByType = new HashMap<>();
+    private final Schema<?>[] schemasByTag = new Schema<?>[8];
+
+    public BinaryCacheCodec() {
+        register(TAG_SHOP, Shop.class, new ShopSchema());
+        register(TAG_SHOP_TYPE, ShopType.class, new ShopTypeSchema());
+        register(TAG_USER, UserDTO.class, new UserSchema());
+    }
+
+    private <T> void register(byte tag, Class<T> type, Schema<T> schema) {
+        tagsByType.put(type, tag);
+        schemasByTag[tag] = schema;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > EXPIRE_OFFSET && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Byte tag = tagsByType.get(value.getClass());
+        if (tag == null) {
+            // 没有专门编码方式的类型直接写json，读取时由json编码解析
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(tag);
+        writeValue(out, tag, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        checkHeader(in);
+        byte tag = in.get();
+        return type.cast(readValue(in, tag, type));
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        Object data = redisData.getData();
+        Byte tag = data == null ? null : tagsByType.get(data.getClass());
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(TAG_LOGICAL);
+        out.writeFixedLong(toEpochMilli(redisData.getExpireTime()));
+        out.writeFixedInt(redisData.getDelta() == null ? 0 : (int) Math.min(redisData.getDelta(), Integer.MAX_VALUE));
+        if (tag == null) {
+            out.writeByte(TAG_JSON);
+            out.writeRaw(JSONUtil.toJsonStr(data).getBytes(StandardCharsets.UTF_8));
+        } else {
+            out.writeByte(tag);
+            writeValue(out, tag, data);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        byte version = checkHeader(in);
+        if (in.get() != TAG_LOGICAL) {
+            throw new IllegalArgumentException("不是逻辑过期数据");
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(fromEpochMilli(in.getLong()));
+        redisData.setDelta(version >= 2 ? (long) in.getInt() : 0L);
+        byte tag = in.get();
+        redisData.setData(readValue(in, tag, type));
+        return redisData;
+    }
+
+    /**
+     * 只读取逻辑过期时间，不解析数据，过期时间在固定的位置上
+     */
+    @Override
+    public LocalDateTime readExpireTime(byte[] bytes) {
+        if (bytes.length < EXPIRE_OFFSET + 8 || bytes[0] != MAGIC || bytes[2] != TAG_LOGICAL) {
+            return null;
+        }
+        return fromEpochMilli(ByteBuffer.wrap(bytes, EXPIRE_OFFSET, 8).getLong());
+    }
+
+    private byte checkHeader(ByteBuffer in) {
+        if (in.get() != MAGIC) {
+            throw new IllegalArgumentException("不是二进制编码的数据");
+        }
+        byte version = in.get();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IllegalArgumentException("不支持的格式版本: " + version);
+        }
+        return version;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(Output out, byte tag, Object value) {
+        ((Schema<Object>) schemasByTag[tag]).write(out, value);
+    }
+
+    private Object readValue(ByteBuffer in, byte tag, Class<?> type) {
+        if (tag == TAG_JSON) {
+            String json = new String(in.array(), in.position(), in.remaining(), StandardCharsets.UTF_8);
+            return JSONUtil.toBean(json, type);
+        }
+        return schemasByTag[tag].read(in);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromEpochMilli(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * 某个类型的编码方式，字段的顺序一旦确定就不能修改，新增字段只能加在最后
+     */
+    private interface Schema<T> {
+        void write(Output out, T value);
+
+        T read(ByteBuffer in);
+    }
+
+    private static class ShopSchema implements Schema<Shop> {
+        @Override
+        public void write(Output out, Shop shop) {
+            out.writeMask(shop.getId(), shop.getName(), shop.getTypeId(), shop.getImages(), shop.getArea(),
+                    shop.getAddress(), shop.getX(), shop.getY(), shop.getAvgPrice(), shop.getSold(),
+                    shop.getComments(), shop.getScore(), shop.getOpenHours(), shop.getCreateTime(),
+                    shop.getUpdateTime(), shop.getDistance());
+            out.writeLong(shop.getId());
+            out.writeString(shop.getName());
+            out.writeLong(shop.getTypeId());
+            out.writeString(shop.getImages());
+            out.writeString(shop.getArea());
+            out.writeString(shop.getAddress());
+            out.writeDouble(shop.getX());
+            out.writeDouble(shop.getY());
+            out.writeLong(shop.getAvgPrice());
+            out.writeInt(shop.getSold());
+            out.writeInt(shop.getComments());
+            out.writeInt(shop.getScore());
+            out.writeString(shop.getOpenHours());
+            out.writeDateTime(shop.getCreateTime());
+            out.writeDateTime(shop.getUpdateTime());
+            out.writeDouble(shop.getDistance());
+        }
+
+        @Override
+        public Shop read(ByteBuffer in) {
+            long mask = readVarLong(in);
+            Shop shop = new Shop();
+            shop.setId(has(mask, 0) ? readLong(in) : null);
+            shop.setName(has(mask, 1) ? readString(in) : null);
+            shop.setTypeId(has(mask, 2) ? readLong(in) : null);
+            shop.setImages(has(mask, 3) ? readString(in) : null);
+            shop.setArea(has(mask, 4) ? readString(in) : null);
+            shop.setAddress(has(mask, 5) ? readString(in) : null);
+            shop.setX(has(mask, 6) ? in.getDouble() : null);
+            shop.setY(has(mask, 7) ? in.getDouble() : null);
+            shop.setAvgPrice(has(mask, 8) ? readLong(in) : null);
+            shop.setSold(has(mask, 9) ? readInt(in) : null);
+            shop.setComments(has(mask, 10) ? readInt(in) : null);
+            shop.setScore(has(mask, 11) ? readInt(in) : null);
+            shop.setOpenHours(has(mask, 12) ? readString(in) : null);
+            shop.setCreateTime(has(mask, 13) ? readDateTime(in) : null);
+            shop.setUpdateTime(has(mask, 14) ? readDateTime(in) : null);
+            shop.setDistance(has(mask, 15) ? in.getDouble() : null);
+            return shop;
+        }
+    }
+
+    private static class ShopTypeSchema implements Schema<ShopType> {
+        @Override
+        public void write(Output out, ShopType shopType) {
+            out.writeMask(shopType.getId(), shopType.getName(), shopType.getIcon(), shopType.getSort(),
+                    shopType.getCreateTime(), shopType.getUpdateTime());
+            out.writeLong(shopType.getId());
+            out.writeString(shopType.getName());
+            out.writeString(shopType.getIcon());
+            out.writeInt(shopType.getSort());
+            out.writeDateTime(shopType.getCreateTime());
+            out.writeDateTime(shopType.getUpdateTime());
+        }
+
+        @Override
+        public ShopType read(ByteBuffer in) {
+            long mask = readVarLong(in);
+            ShopType shopType = new ShopType();
+            shopType.setId(has(mask, 0) ? readLong(in) : null);
+            shopType.setName(has(mask, 1) ? readString(in) : null);
+            shopType.setIcon(has(mask, 2) ? readString(in) : null);
+            shopType.setSort(has(mask, 3) ? readInt(in) : null);
+            shopType.setCreateTime(has(mask, 4) ? readDateTime(in) : null);
+            shopType.setUpdateTime(has(mask, 5) ? readDateTime(in) : null);
+            return shopType;
+        }
+    }
+
+    private static class UserSchema implements Schema<UserDTO> {
+        @Override
+        public void write(Output out, UserDTO user) {
+            out.writeMask(user.getId(), user.getNickName(), user.getIcon());
+            out.writeLong(user.getId());
+            out.writeString(user.getNickName());
+            out.writeString(user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(ByteBuffer in) {
+            long mask = readVarLong(in);
+            UserDTO user = new UserDTO();
+            user.setId(has(mask, 0) ? readLong(in) : null);
+            user.setNickName(has(mask, 1) ? readString(in) : null);
+            user.setIcon(has(mask, 2) ? readString(in) : null);
+            return user;
+        }
+    }
+
+    /**
+     * 写入时使用的输出流，值为null的字段直接跳过，由字段掩码记录
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(128);
+        }
+
+        void writeByte(byte b) {
+            write(b);
+        }
+
+        void writeRaw(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeMask(Object... fields) {
+            long mask = 0;
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] != null) {
+                    mask |= 1L << i;
+                }
+            }
+            writeVarLong(mask);
+        }
+
+        void writeFixedLong(long v) {
+            for (int i = 56; i >= 0; i -= 8) {
+                write((int) (v >>> i));
+            }
+        }
+
+        void writeFixedInt(int v) {
+            for (int i = 24; i >= 0; i -= 8) {
+                write(v >>> i);
+            }
+        }
+
+        void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void writeLong(Long v) {
+            if (v != null) {
+                // zigzag编码，负数也能用较少的字节表示
+                writeVarLong((v << 1) ^ (v >> 63));
+            }
+        }
+
+        void writeInt(Integer v) {
+            if (v != null) {
+                writeLong(v.longValue());
+            }
+        }
+
+        void writeDouble(Double v) {
+            if (v != null) {
+                writeFixedLong(Double.doubleToLongBits(v));
+            }
+        }
+
+        void writeString(String v) {
+            if (v != null) {
+                byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(bytes.length);
+                writeRaw(bytes);
+            }
+        }
+
+        void writeDateTime(LocalDateTime v) {
+            if (v != null) {
+                writeLong(v.toEpochSecond(ZoneOffset.UTC));
+                writeVarLong(v.getNano());
+            }
+        }
+    }
+
+    private static boolean has(long mask, int index) {
+        return (mask & (1L << index)) != 0;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("变长整数格式错误");
+    }
+
+    private static long readLong(ByteBuffer in) {
+        long v = readVarLong(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int readInt(ByteBuffer in) {
+        return (int) readLong(in);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String v = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return v;
+    }
+
+    private static LocalDateTime readDateTime(ByteBuffer in) {
+        long second = readLong(in);
+        int nano = (int) readVarLong(in);
+        return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+    }
+}
@@ -1,22 +1,39 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * @author CHAN
@@ -26,37 +43,369 @@ import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(10);
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+    // 版本号一致时才写入缓存的lua脚本，值是二进制的，直接用原始字节执行
+    private static final byte[] SET_IF_VERSION_SCRIPT;
+    static {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("cacheSetIfVersion.lua"));
+        SET_IF_VERSION_SCRIPT = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+    }
+    // 本地缓存中的空值标记，对应redis中的""
+    private static final Object NIL = new Object();
+    // redis中的空值
+    private static final byte[] EMPTY = new byte[0];
+    // 写入时使用的编码方式
+    private final CacheCodec codec;
+    // 所有的编码方式，读取时根据数据内容挑选，兼容切换编码方式之前写入的数据
+    private final List<CacheCodec> codecs;
+    /**
+     * 本地一级缓存，放在redis前面，命中时不需要网络请求也不需要反序列化
+     * 容量和过期时间都有上限，写满后按LRU淘汰；各节点之间通过redis的发布订阅通知失效
+     */
+    private final LRUCache<String, Object> localCache = CacheUtil.newLRUCache(CACHE_LOCAL_MAX_SIZE, CACHE_LOCAL_TTL);
+    /**
+     * 按键前缀注册的布隆过滤器，可选，注册了的前缀在查询redis和数据库之前先用布隆过滤器拦截不存在的id
+     */
+    private final Map<String, LocalBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    // 缓存未命中时合并同一个key的并发请求
+    private final SingleFlight singleFlight = new SingleFlight();
+    // 开启了提前刷新的键前缀 -> beta
+    private final Map<String, Double> earlyRefreshBetas = new ConcurrentHashMap<>();
+    // 键前缀 -> 过期时间抖动
+    private final Map<String, TtlJitter> ttlJitters = new ConcurrentHashMap<>();
+    // 热点key探测，所有经过本地缓存的读取都会被统计
+    private final HotKeyDetector hotKeyDetector =
+            new HotKeyDetector(HOT_KEY_WINDOW, HOT_KEY_SLOTS, HOT_KEY_THRESHOLD, HOT_KEY_TOP_K);
+    /**
+     * 热点key的本地副本，只存放探测出来的热点key，不受一级缓存容量的LRU淘汰影响
+     * 过期时间很短，热点key降级时立即删除，各节点之间的失效通知和一级缓存一样生效
+     */
+    private final TimedCache<String, Object> hotCache = CacheUtil.newTimedCache(CACHE_HOT_TTL);
+    // 按键前缀统计的缓存指标
+    private final CacheMetrics cacheMetrics;
+    // 逻辑过期数据的异步重建
+    private final CacheRebuildExecutor rebuildExecutor;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, List<CacheCodec> codecs, CacheMetrics cacheMetrics,
+                       CacheRebuildExecutor rebuildExecutor, @Value("${hmdp.cache.codec:binary}") String codecName) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheMetrics = cacheMetrics;
+        this.rebuildExecutor = rebuildExecutor;
+        this.codecs = codecs;
+        this.codec = codecs.stream()
+                .filter(c -> c.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("不支持的缓存编码方式: " + codecName));
+        // 热点key冷下来之后删除本地副本
+        hotKeyDetector.onDemote(hotCache::remove);
+        cacheMetrics.gauge("singleFlight.inFlight", singleFlight::inFlightCount);
+        cacheMetrics.gauge("localCache.size", localCache::size);
+        cacheMetrics.gauge("hotCache.size", hotCache::size);
     }
 
     /**
-     * 放入缓存，并设置TTL过期
+     * 放入缓存，并设置TTL过期，同时通知其他节点删除本地缓存中的旧值
      * @param key 键
      * @param value 值
      * @param time 过期时间
      * @param unit 时间单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, codec.encode(value), time, unit);
+        removeLocal(key);
+        publishInvalidation(Collections.singletonList(key));
     }
 
     /**
-     * 存入缓存，带逻辑过期字段
+     * 存入缓存，带逻辑过期字段，同时通知其他节点删除本地缓存中的旧值
      * @param key 键
      * @param value 值
      * @param time 过期时间
      * @param unit 时间单位
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        //设置逻辑过期
+        //写入redis
+        setRaw(key, codec.encodeLogical(newRedisData(key, value, time, unit, 0L)), null, null);
+        removeLocal(key);
+        publishInvalidation(Collections.singletonList(key));
+    }
+
+    /**
+     * 从数据库重新加载并写入带逻辑过期字段的缓存
+     * 加载之前先读取版本号，写入时版本号已经变了说明加载期间数据被修改过，放弃写入，避免旧数据覆盖新数据
+     * @param key 键
+     * @param loader 查询数据库
+     * @param time 过期时间
+     * @param unit 时间单位
+     * @return 是否写入
+     */
+    public boolean refreshWithLogicalExpire(String key, Supplier<?> loader, Long time, TimeUnit unit) {
+        String version = readVersion(key);
+        Object value = loader.get();
+        if (value == null) {
+            return false;
+        }
+        boolean written = setWithLogicalExpireIfVersion(key, value, time, unit, 0L, version);
+        if (written) {
+            publishInvalidation(Collections.singletonList(key));
+        }
+        return written;
+    }
+
+    /**
+     * 版本号没有变化时存入带逻辑过期字段的缓存
+     * @param delta 查询数据库花费的时间，单位毫秒
+     * @param version 查询数据库之前读到的版本号
+     * @return 是否写入
+     */
+    private boolean setWithLogicalExpireIfVersion(
+            String key, Object value, Long time, TimeUnit unit, long delta, String version) {
+        boolean written = setRawIfVersion(key, codec.encodeLogical(newRedisData(key, value, time, unit, delta)), version, null, null);
+        removeLocal(key);
+        return written;
+    }
+
+    private RedisData newRedisData(String key, Object value, Long time, TimeUnit unit, long delta) {
+        //设置逻辑过期，过期时间按键前缀的配置随机抖动
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        redisData.setExpireTime(LocalDateTime.now().plus(ttlMillis(key, time, unit), ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
+        return redisData;
+    }
+
+    /**
+     * 批量存入带逻辑过期字段的数据，编码后用管道一次写入，用于缓存预热
+     * 版本号和查询数据库之前读到的不一致的key不会写入
+     * @param values 键 -> 值
+     * @param versions 键 -> 查询数据库之前通过readVersions读到的版本号
+     * @param time 过期时间
+     * @param unit 时间单位
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Map<String, String> versions, Long time, TimeUnit unit) {
+        Map<String, byte[]> writes = new LinkedHashMap<>();
+        values.forEach((key, value) -> writes.put(key, codec.encodeLogical(newRedisData(key, value, time, unit, 0L))));
+        setRawBatchIfVersion(writes, versions, null, null);
+        writes.keySet().forEach(this::removeLocal);
+        publishInvalidation(writes.keySet());
+    }
+
+    /**
+     * 批量读取缓存的版本号，在查询数据库之前调用
+     * @param keys 键
+     * @return 键 -> 版本号
+     */
+    public Map<String, String> readVersions(List<String> keys) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(
+                keys.stream().map(k -> CACHE_VERSION_KEY + k).collect(Collectors.toList()));
+        Map<String, String> versions = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String v = values == null ? null : values.get(i);
+            versions.put(keys.get(i), v == null ? "0" : v);
+        }
+        return versions;
+    }
+
+    /**
+     * 为键前缀开启提前刷新（XFetch算法），逻辑过期数据在到期之前就有一定概率触发重建
+     * 每次读取时，如果 当前时间 - 重建耗时 * beta * ln(随机数) >= 过期时间 就提前重建
+     * 离过期时间越近、重建越慢、读取越频繁，提前重建的概率越大；冷门数据读得少，几乎不会被提前重建
+     * @param keyPrefix 键前缀
+     * @param beta 大于1更倾向于提前刷新，小于1更倾向于推迟刷新，默认1
+     */
+    public void enableEarlyRefresh(String keyPrefix, double beta) {
+        earlyRefreshBetas.put(keyPrefix, beta);
+    }
+
+    /**
+     * 为键前缀配置过期时间抖动，对TTL过期和逻辑过期都生效，包括空值
+     * @param keyPrefix 键前缀
+     * @param jitter 抖动
+     */
+    public void registerTtlJitter(String keyPrefix, TtlJitter jitter) {
+        ttlJitters.put(keyPrefix, jitter);
+    }
+
+    /**
+     * 统计键前缀下所有key距离过期还有多久，按时间分桶，用于确认过期时间是否足够分散
+     * 用SCAN分批遍历，逻辑过期的key读取值中的过期时间，其他key读取剩余TTL
+     * 缓存都是字符串，前缀下不是字符串的key不读取值，只计数，避免GET报WRONGTYPE
+     * @param keyPrefix 键前缀
+     * @param bucketSeconds 每个桶的时长，单位秒
+     * @param limit 最多统计的key数量
+     * @return 各个桶的key数量，以及已经逻辑过期的、永不过期的和不是字符串的key数量
+     */
+    public Map<String, Object> expiryHistogram(String keyPrefix, long bucketSeconds, int limit) {
+        long now = System.currentTimeMillis();
+        Map<Long, Long> buckets = new TreeMap<>();
+        long[] expired = {0};
+        long[] persistent = {0};
+        long[] skipped = {0};
+        int scanned = 0;
+        ScanOptions options = ScanOptions.scanOptions().match(keyPrefix + "*").count(500).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            List<byte[]> batch = new ArrayList<>();
+            while (cursor != null && cursor.hasNext() && scanned < limit) {
+                batch.add(cursor.next());
+                scanned++;
+                if (batch.size() == 500 || !cursor.hasNext() || scanned == limit) {
+                    // 每批用管道读取类型和剩余TTL，再读取字符串key的值
+                    List<Object> meta = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        for (byte[] rawKey : batch) {
+                            connection.type(rawKey);
+                            connection.pTtl(rawKey);
+                        }
+                        return null;
+                    }, RedisSerializer.byteArray());
+                    List<byte[]> strings = new ArrayList<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (meta.get(i * 2) == DataType.STRING) {
+                            strings.add(batch.get(i));
+                        }
+                    }
+                    List<Object> values = strings.isEmpty() ? Collections.emptyList()
+                            : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        for (byte[] rawKey : strings) {
+                            connection.get(rawKey);
+                        }
+                        return null;
+                    }, RedisSerializer.byteArray());
+                    int next = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (meta.get(i * 2) != DataType.STRING) {
+                            // 不是缓存的key，或者已经被删除
+                            skipped[0]++;
+                            continue;
+                        }
+                        Long pttl = (Long) meta.get(i * 2 + 1);
+                        byte[] value = (byte[]) values.get(next++);
+                        LocalDateTime expireTime = value == null || value.length == 0 ? null : readExpireTime(value);
+                        long remaining;
+                        if (pttl != null && pttl > 0) {
+                            remaining = pttl;
+                        } else if (expireTime != null) {
+                            remaining = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - now;
+                        } else {
+                            persistent[0]++;
+                            continue;
+                        }
+                        if (remaining <= 0) {
+                            expired[0]++;
+                            continue;
+                        }
+                        buckets.merge(remaining / 1000 / bucketSeconds * bucketSeconds, 1L, Long::sum);
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭SCAN游标失败", e);
+        }
+        Map<String, Object> histogram = new LinkedHashMap<>();
+        histogram.put("prefix", keyPrefix);
+        histogram.put("scanned", scanned);
+        histogram.put("bucketSeconds", bucketSeconds);
+        // 距离过期的秒数（桶的起点） -> key数量
+        histogram.put("buckets", buckets);
+        histogram.put("logicallyExpired", expired[0]);
+        histogram.put("noExpiry", persistent[0]);
+        histogram.put("notString", skipped[0]);
+        TtlJitter jitter = jitterFor(keyPrefix);
+        histogram.put("jitter", jitter == null ? null : jitter.getDistribution() + "(" + jitter.getRatio() + ")");
+        return histogram;
+    }
+
+    /**
+     * 为键前缀注册布隆过滤器，重复注册会直接替换，用于在线重建
+     * @param keyPrefix 键前缀
+     * @param bloomFilter 布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, LocalBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 向键前缀对应的布隆过滤器中添加id，新增数据时调用
+     * @param keyPrefix 键前缀
+     * @param id id
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        LocalBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null) {
+            bloomFilter.put(id);
+        }
+    }
+
+    /**
+     * 获取键前缀对应的布隆过滤器
+     * @param keyPrefix 键前缀
+     * @return 没有注册时返回null
+     */
+    public LocalBloomFilter getBloomFilter(String keyPrefix) {
+        return bloomFilters.get(keyPrefix);
+    }
+
+    /**
+     * 立即删除缓存，同时通知所有节点删除本地缓存；在事务中修改数据后应该使用CacheInvalidator，等事务提交后再删除
+     * 删除之前版本号自增，正在查询数据库的重建拿着旧版本号，之后的写入会被拒绝
+     * @param key 键
+     */
+    public void delete(String key) {
+        delete(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存，所有key的版本号自增和删除用管道一次完成，只发一条失效广播，消息中的key用换行分隔
+     * @param keys 键
+     */
+    public void delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        long versionTtl = TimeUnit.HOURS.toSeconds(CACHE_VERSION_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] rawVersionKey = (CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8);
+                connection.incr(rawVersionKey);
+                connection.expire(rawVersionKey, versionTtl);
+            }
+            connection.del(keys.stream().map(k -> k.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new));
+            return null;
+        });
+        keys.forEach(this::removeLocal);
+        publishInvalidation(keys);
+    }
+
+    /**
+     * 广播失效通知，其他节点收到后删除本地缓存，消息中的key用换行分隔
+     */
+    private void publishInvalidation(Collection<String> keys) {
+        if (!keys.isEmpty()) {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+        }
+    }
+
+    /**
+     * 只删除本节点的本地缓存，收到其他节点的失效通知时调用
+     * @param key 键
+     */
+    public void evictLocal(String key) {
+        removeLocal(key);
+    }
+
+    /**
+     * 当前的热点key和它们的本地命中率
+     * @return 按窗口内访问次数从大到小排列
+     */
+    public List<HotKeyDetector.HotKeyStats> getHotKeys() {
+        return hotKeyDetector.hotKeys();
     }
 
     /**
@@ -72,32 +421,117 @@ public class CacheClient {
      * @return R
      */
     public <R, ID> R queryByIdWithPassThroughBySetNil(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        //布隆过滤器判断不存在，直接返回，不访问redis和数据库
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        //先查本地缓存
+        Object local = getLocal(key);
+        if (local == NIL) {
+            metrics(keyPrefix).localHits.increment();
+            recordNullHit(keyPrefix);
+            return null;
+        }
+        if (type.isInstance(local)) {
+            metrics(keyPrefix).localHits.increment();
+            return type.cast(local);
+        }
         //从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] value = getRaw(keyPrefix, key);
         //判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if (value != null && value.length > 0) {
+            //存在，放入本地缓存后返回
+            metrics(keyPrefix).redisHits.increment();
+            R r = decode(value, type);
+            putLocal(key, r);
+            return r;
         }
         //有效解决缓存穿透
-        if (Objects.equals(json, "")) {
+        if (value != null) {
+            metrics(keyPrefix).redisHits.increment();
+            putLocal(key, NIL);
+            recordNullHit(keyPrefix);
             return null;
         }
-        //缓存中不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        //缓存中不存在，根据id查询数据库，查询之前先读取版本号
+        metrics(keyPrefix).misses.increment();
+        String version = readVersion(key);
+        R r = loadFromDb(keyPrefix, () -> dbFallback.apply(id));
         //数据库中不存在，在redis中给这个键设置一个空值，防止缓存穿透，并返回错误
         if (r == null) {
-            this.set(key, "", time, unit);
+            if (setRawIfVersion(key, EMPTY, version, time, unit)) {
+                putLocal(key, NIL);
+            }
+            recordNotFound(keyPrefix);
             return null;
         }
         //数据库中存在，将数据写入redis，这里设置一个超时时间，是为双写一致性方案可能会出现的纰漏兜底
         //即使极端情况发生导致数据库和缓存的数据不一致，那么到达超时时间之后缓存会清空，数据再被访问时会同步新数据
-        this.set(key, r, time, unit);
+        //版本号变了说明查询期间数据被修改过，不写入缓存，只把查到的数据返回给这次请求
+        if (setRawIfVersion(key, codec.encode(r), version, time, unit)) {
+            putLocal(key, r);
+        }
         //返回
         return r;
     }
 
+    /**
+     * 缓存已经序列化好的字节，读写都不经过编码方式，命中时原样返回，用于直接写入HTTP响应的数据
+     * 其他和设置空值的方式一样：布隆过滤器、本地缓存、空值、写入前检查版本号
+     * @param keyPrefix 键前缀
+     * @param id 根据id查询
+     * @param dbFallback 查询数据库并序列化，数据不存在时返回null
+     * @param time 时间
+     * @param unit 单位
+     * @param <ID> id类型
+     * @return 缓存的字节，不存在时返回null，调用方不能修改
+     */
+    public <ID> byte[] queryRaw(String keyPrefix, ID id, Function<ID, byte[]> dbFallback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        Object local = getLocal(key);
+        if (local == NIL) {
+            metrics(keyPrefix).localHits.increment();
+            recordNullHit(keyPrefix);
+            return null;
+        }
+        if (local instanceof byte[]) {
+            metrics(keyPrefix).localHits.increment();
+            return (byte[]) local;
+        }
+        byte[] value = getRaw(keyPrefix, key);
+        if (value != null) {
+            metrics(keyPrefix).redisHits.increment();
+            if (value.length == 0) {
+                putLocal(key, NIL);
+                recordNullHit(keyPrefix);
+                return null;
+            }
+            putLocal(key, value);
+            return value;
+        }
+        // 缓存中不存在，同一个key的并发请求只查一次数据库
+        metrics(keyPrefix).misses.increment();
+        return singleFlight.execute(key, () -> {
+            String version = readVersion(key);
+            byte[] bytes = loadFromDb(keyPrefix, () -> dbFallback.apply(id));
+            if (bytes == null) {
+                if (setRawIfVersion(key, EMPTY, version, CACHE_NULL_TTL, TimeUnit.MINUTES)) {
+                    putLocal(key, NIL);
+                }
+                recordNotFound(keyPrefix);
+                return null;
+            }
+            if (setRawIfVersion(key, bytes, version, time, unit)) {
+                putLocal(key, bytes);
+            }
+            return bytes;
+        });
+    }
+
     /**
      * 使用逻辑过期的方式解决查询热点数据时可能发生的缓存击穿问题
      * @param keyPrefix 键前缀
@@ -112,47 +546,145 @@ public class CacheClient {
      */
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断不存在，直接返回
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        // 1.先查本地缓存，本地缓存中存的是已经反序列化好的RedisData，未过期直接返回
+        Object local = getLocal(key);
+        if (local == NIL) {
+            metrics(keyPrefix).localHits.increment();
+            recordNullHit(keyPrefix);
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        R localHit = localLogicalHit(local, type);
+        if (localHit != null) {
+            metrics(keyPrefix).localHits.increment();
+            // 开启了提前刷新的前缀，按概率提前重建
+            if (shouldRefreshEarly(keyPrefix, (RedisData) local)) {
+                rebuildLogicalAsync(keyPrefix, key, () -> dbFallback.apply(id), time, unit);
+            }
+            return localHit;
+        }
+        // 2.从redis查询缓存
+        byte[] value = getRaw(keyPrefix, key);
+        // 3.判断是否存在
+        if (value == null || value.length == 0) {
+            // 命中空值，说明数据库中也不存在
+            if (value != null) {
+                metrics(keyPrefix).redisHits.increment();
+                putLocal(key, NIL);
+                recordNullHit(keyPrefix);
+                return null;
+            }
+            // 3.1.未预热，查询数据库并写入，同一个key的并发请求只查一次数据库
+            metrics(keyPrefix).misses.increment();
+            return singleFlight.execute(key, () -> {
+                String version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                R r = loadFromDb(keyPrefix, () -> dbFallback.apply(id));
+                if (r == null) {
+                    if (setRawIfVersion(key, EMPTY, version, CACHE_NULL_TTL, TimeUnit.MINUTES)) {
+                        putLocal(key, NIL);
+                    }
+                    recordNotFound(keyPrefix);
+                    return null;
+                }
+                this.setWithLogicalExpireIfVersion(key, r, time, unit, System.currentTimeMillis() - begin, version);
+                return r;
+            });
+        }
+        // 4.命中，需要先反序列化为对象
+        metrics(keyPrefix).redisHits.increment();
+        RedisData redisData = decodeLogical(value, type);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回信息
+            // 5.1.未过期，放入本地缓存后返回信息
+            putLocal(key, redisData);
+            // 开启了提前刷新的前缀，按概率提前重建
+            if (shouldRefreshEarly(keyPrefix, redisData)) {
+                rebuildLogicalAsync(keyPrefix, key, () -> dbFallback.apply(id), time, unit);
+            }
             return r;
         }
         // 5.2.已过期，需要缓存重建
+        metrics(keyPrefix).staleServed.increment();
         // 6.缓存重建
+        rebuildLogicalAsync(keyPrefix, key, () -> dbFallback.apply(id), time, unit);
+        // 6.4.返回过期的信息
+        return r;
+    }
+
+    /**
+     * XFetch算法判断未过期的数据是否需要提前重建
+     * @param keyPrefix 键前缀
+     * @param redisData 逻辑过期数据
+     * @return boolean
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, RedisData redisData) {
+        Double beta = earlyRefreshBetas.get(keyPrefix);
+        Long delta = redisData.getDelta();
+        if (beta == null || delta == null || delta <= 0) {
+            return false;
+        }
+        // -ln(随机数)服从指数分布，均值为1
+        double gapMillis = -delta * beta * Math.log(ThreadLocalRandom.current().nextDouble());
+        boolean refresh = !LocalDateTime.now().plusNanos((long) (gapMillis * 1_000_000)).isBefore(redisData.getExpireTime());
+        if (refresh) {
+            metrics(keyPrefix).earlyRefreshes.increment();
+        }
+        return refresh;
+    }
+
+    /**
+     * 逻辑过期数据的异步重建，拿到互斥锁的线程才会提交重建任务
+     * @param keyPrefix 键前缀，用于记录指标
+     * @param key 键
+     * @param loader 查询数据库
+     * @param time 过期时间
+     * @param unit 时间单位
+     */
+    private void rebuildLogicalAsync(String keyPrefix, String key, Supplier<?> loader, Long time, TimeUnit unit) {
+        CacheMetrics.PrefixMetrics m = metrics(keyPrefix);
         // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        String lockKey = LOCK_CACHE_KEY + key;
+        String token = tryLock(lockKey);
         // 6.2.判断是否获取锁成功
-        if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_POOL.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
+        if (token == null) {
+            m.lockFailures.increment();
+            return;
         }
-        // 6.4.返回过期的信息
-        return r;
+        // 6.3.成功，交给重建线程池，同一个key去重，队列满了直接丢弃，继续返回旧数据
+        rebuildExecutor.submit(keyPrefix, key, TimeUnit.SECONDS.toMillis(LOCK_CACHE_TTL), leaseValid -> {
+            long start = System.nanoTime();
+            m.rebuilds.increment();
+            try {
+                // 查询数据库，记录耗时，作为下一次提前刷新的依据；查询之前先读取版本号
+                String version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                Object newR = loadFromDb(keyPrefix, loader);
+                long delta = System.currentTimeMillis() - begin;
+                // 锁已经过期，其他节点可能已经开始重建，不再写入
+                if (!leaseValid.getAsBoolean()) {
+                    throw new IllegalStateException("重建互斥锁已过期");
+                }
+                // 重建缓存，数据已经被删除的写入空值
+                if (newR == null) {
+                    setRawIfVersion(key, EMPTY, version, CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    removeLocal(key);
+                } else {
+                    this.setWithLogicalExpireIfVersion(key, newR, time, unit, delta, version);
+                }
+            } catch (RuntimeException e) {
+                m.rebuildFailures.increment();
+                throw e;
+            } finally {
+                m.rebuildLatency.record(System.nanoTime() - start);
+            }
+        }, () -> unlock(lockKey, token));
     }
 
     /**
@@ -169,68 +701,550 @@ public class CacheClient {
      */
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断不存在，直接返回
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 先查本地缓存
+        Object local = getLocal(key);
+        if (local == NIL) {
+            metrics(keyPrefix).localHits.increment();
+            recordNullHit(keyPrefix);
+            return null;
+        }
+        if (type.isInstance(local)) {
+            metrics(keyPrefix).localHits.increment();
+            return type.cast(local);
+        }
         // 1.从redis查询缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] value = getRaw(keyPrefix, key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+        if (value != null && value.length > 0) {
+            // 3.存在，放入本地缓存后返回
+            metrics(keyPrefix).redisHits.increment();
+            R r = decode(value, type);
+            putLocal(key, r);
+            return r;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (value != null) {
             // 返回一个错误信息
+            metrics(keyPrefix).redisHits.increment();
+            putLocal(key, NIL);
+            recordNullHit(keyPrefix);
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        metrics(keyPrefix).misses.increment();
+        // 4.实现缓存重建，同一节点上对同一个key的并发请求合并成一次，只有一个线程去竞争分布式锁
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit));
+    }
+
+    /**
+     * 获取互斥锁后重建缓存，没拿到锁说明其他节点正在重建，等待一会儿后重新查询redis
+     * 由于请求已经被合并，每个节点只有一个线程在这里循环，其他线程等待这个线程的结果
+     */
+    private <R, ID> R rebuildWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = LOCK_CACHE_KEY + key;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
+            while (true) {
+                // 4.1.获取互斥锁
+                String token = tryLock(lockKey);
+                // 4.2.判断是否获取成功
+                if (token != null) {
+                    try {
+                        return loadWithLock(keyPrefix, id, type, dbFallback, time, unit);
+                    } finally {
+                        // 7.释放锁
+                        unlock(lockKey, token);
+                    }
+                }
+                // 4.3.获取锁失败，休眠后重新查询redis，其他节点重建完成就可以直接返回
+                metrics(keyPrefix).lockFailures.increment();
                 Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+                byte[] value = getRaw(keyPrefix, key);
+                if (value != null) {
+                    return decodeAndCacheLocal(keyPrefix, key, value, type);
+                }
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
         }
+    }
+
+    /**
+     * 持有互斥锁时查询数据库并写入缓存
+     */
+    private <R, ID> R loadWithLock(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 4.4.获取锁成功，再查一次redis，可能在等锁期间已经有其他节点重建好了
+        byte[] value = getRaw(keyPrefix, key);
+        if (value != null) {
+            return decodeAndCacheLocal(keyPrefix, key, value, type);
+        }
+        // 根据id查询数据库，查询之前先读取版本号
+        CacheMetrics.PrefixMetrics m = metrics(keyPrefix);
+        long start = System.nanoTime();
+        m.rebuilds.increment();
+        String version = readVersion(key);
+        R r = loadFromDb(keyPrefix, () -> dbFallback.apply(id));
+        // 5.不存在，返回错误
+        if (r == null) {
+            // 将空值写入redis
+            if (setRawIfVersion(key, EMPTY, version, CACHE_NULL_TTL, TimeUnit.MINUTES)) {
+                putLocal(key, NIL);
+            }
+            recordNotFound(keyPrefix);
+            m.rebuildLatency.record(System.nanoTime() - start);
+            // 返回错误信息
+            return null;
+        }
+        // 6.存在，写入redis，版本号变了就不写
+        if (setRawIfVersion(key, codec.encode(r), version, time, unit)) {
+            putLocal(key, r);
+        }
+        m.rebuildLatency.record(System.nanoTime() - start);
         // 8.返回
         return r;
     }
 
     /**
-     * 获取互斥锁
+     * 把redis中查到的值反序列化并放入本地缓存，空字符串代表空值
+     */
+    private <R> R decodeAndCacheLocal(String keyPrefix, String key, byte[] value, Class<R> type) {
+        if (value.length == 0) {
+            putLocal(key, NIL);
+            recordNullHit(keyPrefix);
+            return null;
+        }
+        R r = decode(value, type);
+        putLocal(key, r);
+        return r;
+    }
+
+    /**
+     * 根据数据内容选择编码方式解码
+     */
+    private <R> R decode(byte[] value, Class<R> type) {
+        return codecFor(value).decode(value, type);
+    }
+
+    private RedisData decodeLogical(byte[] value, Class<?> type) {
+        return codecFor(value).decodeLogical(value, type);
+    }
+
+    private CacheCodec codecFor(byte[] value) {
+        for (CacheCodec c : codecs) {
+            if (c.canDecode(value)) {
+                return c;
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存数据格式");
+    }
+
+    /**
+     * 直接读取redis中的原始字节，不经过StringRedisTemplate的字符串序列化
+     */
+    private byte[] getRaw(String keyPrefix, String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        long begin = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        } finally {
+            metrics(keyPrefix).redisLatency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 一次MGET读取多个key的原始字节
+     */
+    private List<byte[]> mGetRaw(String keyPrefix, List<String> keys) {
+        byte[][] rawKeys = keys.stream().map(k -> k.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        long begin = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        } finally {
+            metrics(keyPrefix).redisLatency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 按key所属前缀的抖动配置计算过期时间，没有配置时不抖动
+     * @return 过期时间，单位毫秒
+     */
+    private long ttlMillis(String key, long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        TtlJitter jitter = jitterFor(key);
+        return jitter == null ? millis : jitter.apply(millis);
+    }
+
+    /**
+     * 找到key所属的最长的键前缀对应的抖动配置
+     */
+    private TtlJitter jitterFor(String key) {
+        TtlJitter matched = null;
+        int matchedLength = -1;
+        for (Map.Entry<String, TtlJitter> entry : ttlJitters.entrySet()) {
+            String prefix = entry.getKey();
+            if (key.startsWith(prefix) && prefix.length() > matchedLength) {
+                matched = entry.getValue();
+                matchedLength = prefix.length();
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * 读取逻辑过期时间，不是逻辑过期数据时返回null
+     */
+    private LocalDateTime readExpireTime(byte[] value) {
+        return codecFor(value).readExpireTime(value);
+    }
+
+    /**
+     * 读取缓存的版本号，没有时为"0"，在查询数据库之前调用
+     */
+    private String readVersion(String key) {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_VERSION_KEY + key);
+        return version == null ? "0" : version;
+    }
+
+    /**
+     * 版本号和查询数据库之前读到的一致时才写入原始字节，判断和写入在lua脚本中完成，time为null时不设置过期时间
+     * @return 是否写入
+     */
+    private boolean setRawIfVersion(String key, byte[] value, String version, Long time, TimeUnit unit) {
+        long ttl = time == null ? 0 : ttlMillis(key, time, unit);
+        byte[][] keysAndArgs = {
+                key.getBytes(StandardCharsets.UTF_8), (CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8),
+                value, version.getBytes(StandardCharsets.UTF_8), String.valueOf(ttl).getBytes(StandardCharsets.UTF_8)};
+        Long result = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.eval(SET_IF_VERSION_SCRIPT, ReturnType.INTEGER, 2, keysAndArgs));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * 直接写入原始字节，time为null时不设置过期时间
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null
+                ? Expiration.persistent() : Expiration.from(ttlMillis(key, time, unit), TimeUnit.MILLISECONDS);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 批量查询，缓存的数据设置TTL过期，不存在的数据写入空值
+     * 本地缓存未命中的id用一次MGET从redis查询，redis未命中的id用一次批量查询从数据库加载，再用管道一次写回redis
+     * @param keyPrefix 键前缀
+     * @param ids id集合
+     * @param type 查询的数据类型
+     * @param dbFallback 根据id集合批量查询数据库的函数式接口
+     * @param idGetter 从数据中取出id，用于把数据库查询结果和id对应起来
+     * @param time 时间
+     * @param unit 单位
+     * @param <R> 数据类型泛型
+     * @param <ID> id类型泛型
+     * @return 按ids的顺序排列的 id -> 数据，不存在的id不包含在内
+     */
+    public <R, ID> Map<ID, R> queryBatchByIds(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, false);
+    }
+
+    /**
+     * 批量查询，缓存的数据带逻辑过期时间，已过期的数据先返回旧值，再逐个异步重建
+     * @param keyPrefix 键前缀
+     * @param ids id集合
+     * @param type 查询的数据类型
+     * @param dbFallback 根据id集合批量查询数据库的函数式接口
+     * @param idGetter 从数据中取出id
+     * @param time 时间
+     * @param unit 单位
+     * @param <R> 数据类型泛型
+     * @param <ID> id类型泛型
+     * @return 按ids的顺序排列的 id -> 数据，不存在的id不包含在内
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, true);
+    }
+
+    private <R, ID> Map<ID, R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+            Long time, TimeUnit unit, boolean logical) {
+        Map<ID, R> found = new HashMap<>();
+        CacheMetrics.PrefixMetrics m = metrics(keyPrefix);
+        // 1.布隆过滤器和本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (rejectedByBloomFilter(keyPrefix, id)) {
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local == NIL) {
+                m.localHits.increment();
+                recordNullHit(keyPrefix);
+                continue;
+            }
+            R r = logical ? localLogicalHit(local, type) : (type.isInstance(local) ? type.cast(local) : null);
+            if (r != null) {
+                m.localHits.increment();
+                found.put(id, r);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (!remoteIds.isEmpty()) {
+            // 2.一次MGET查询redis
+            List<ID> missIds = new ArrayList<>();
+            List<byte[]> values = mGetRaw(keyPrefix, remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                String key = keyPrefix + id;
+                byte[] value = values == null ? null : values.get(i);
+                if (value == null) {
+                    m.misses.increment();
+                    missIds.add(id);
+                    continue;
+                }
+                m.redisHits.increment();
+                if (value.length == 0) {
+                    putLocal(key, NIL);
+                    recordNullHit(keyPrefix);
+                } else if (logical) {
+                    RedisData redisData = decodeLogical(value, type);
+                    boolean expired = !redisData.getExpireTime().isAfter(LocalDateTime.now());
+                    if (!expired) {
+                        putLocal(key, redisData);
+                    }
+                    if (expired) {
+                        m.staleServed.increment();
+                    }
+                    if (expired || shouldRefreshEarly(keyPrefix, redisData)) {
+                        // 已过期或需要提前刷新，返回旧值，异步重建
+                        rebuildLogicalAsync(keyPrefix, key, () -> {
+                            List<R> list = dbFallback.apply(Collections.singletonList(id));
+                            return list == null || list.isEmpty() ? null : list.get(0);
+                        }, time, unit);
+                    }
+                    found.put(id, type.cast(redisData.getData()));
+                } else {
+                    R r = decode(value, type);
+                    putLocal(key, r);
+                    found.put(id, r);
+                }
+            }
+            // 3.一次批量查询数据库，再用管道一次写回redis
+            if (!missIds.isEmpty()) {
+                found.putAll(loadBatch(keyPrefix, missIds, dbFallback, idGetter, time, unit, logical));
+            }
+        }
+        // 4.按照传入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询数据库并用管道写回redis，数据库中不存在的id写入空值
+     */
+    private <R, ID> Map<ID, R> loadBatch(
+            String keyPrefix, List<ID> missIds, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit, boolean logical) {
+        // 查询数据库之前先读取版本号
+        Map<String, String> versions = readVersions(missIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+        long begin = System.currentTimeMillis();
+        List<R> loaded = loadFromDb(keyPrefix, () -> dbFallback.apply(missIds));
+        // 批量查询的耗时平均到每一条数据上
+        long delta = (System.currentTimeMillis() - begin) / missIds.size();
+        Map<String, R> loadedByKey = new HashMap<>();
+        if (loaded != null) {
+            for (R r : loaded) {
+                loadedByKey.put(keyPrefix + idGetter.apply(r), r);
+            }
+        }
+        Map<ID, R> found = new HashMap<>();
+        Map<String, byte[]> writes = new LinkedHashMap<>();
+        // 写入成功之后放入本地缓存的值
+        Map<String, Object> locals = new HashMap<>();
+        for (ID id : missIds) {
+            String key = keyPrefix + id;
+            R r = loadedByKey.get(key);
+            if (r == null) {
+                writes.put(key, EMPTY);
+                locals.put(key, NIL);
+                recordNotFound(keyPrefix);
+                continue;
+            }
+            found.put(id, r);
+            if (logical) {
+                RedisData redisData = newRedisData(key, r, time, unit, delta);
+                writes.put(key, codec.encodeLogical(redisData));
+                locals.put(key, redisData);
+            } else {
+                writes.put(key, codec.encode(r));
+                locals.put(key, r);
+            }
+        }
+        Set<String> written = logical
+                ? setRawBatchIfVersion(writes, versions, null, null) : setRawBatchIfVersion(writes, versions, time, unit);
+        written.forEach(key -> putLocal(key, locals.get(key)));
+        return found;
+    }
+
+    /**
+     * 用管道一次写入多个key的原始字节，空值使用空值的过期时间，版本号和读取时不一致的key不写入
+     * time为null时不设置过期时间，每个key的过期时间单独抖动
+     * @return 写入成功的key
+     */
+    private Set<String> setRawBatchIfVersion(Map<String, byte[]> writes, Map<String, String> versions, Long time, TimeUnit unit) {
+        List<String> keys = new ArrayList<>(writes.keySet());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] value = writes.get(key);
+                long ttl = value.length == 0
+                        ? ttlMillis(key, CACHE_NULL_TTL, TimeUnit.MINUTES) : (time == null ? 0 : ttlMillis(key, time, unit));
+                connection.eval(SET_IF_VERSION_SCRIPT, ReturnType.INTEGER, 2,
+                        key.getBytes(StandardCharsets.UTF_8), (CACHE_VERSION_KEY + key).getBytes(StandardCharsets.UTF_8),
+                        value, versions.getOrDefault(key, "0").getBytes(StandardCharsets.UTF_8),
+                        String.valueOf(ttl).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Set<String> written = new HashSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (Long.valueOf(1).equals(results.get(i))) {
+                written.add(keys.get(i));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 查询本地缓存，同时统计访问次数；热点key在一级缓存中被淘汰了还可以从热点副本中取
+     */
+    private Object getLocal(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        Object local = localCache.get(key, false);
+        if (local == null && hot) {
+            local = hotCache.get(key, false);
+        }
+        if (local != null && hot) {
+            hotKeyDetector.recordLocalHit(key);
+        }
+        return local;
+    }
+
+    /**
+     * 放入本地缓存，热点key同时放入热点副本
+     */
+    private void putLocal(String key, Object value) {
+        localCache.put(key, value);
+        if (hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value);
+        }
+    }
+
+    private void removeLocal(String key) {
+        localCache.remove(key);
+        hotCache.remove(key);
+    }
+
+    /**
+     * 本地缓存中未过期的逻辑过期数据
+     */
+    private <R> R localLogicalHit(Object local, Class<R> type) {
+        if (local instanceof RedisData) {
+            RedisData localData = (RedisData) local;
+            if (type.isInstance(localData.getData()) && localData.getExpireTime().isAfter(LocalDateTime.now())) {
+                return type.cast(localData.getData());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在时返回true，前缀没有注册布隆过滤器时返回false
+     * 每次查询都从这里开始，顺便记录请求次数
+     */
+    private boolean rejectedByBloomFilter(String keyPrefix, Object id) {
+        CacheMetrics.PrefixMetrics m = metrics(keyPrefix);
+        m.requests.increment();
+        LocalBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
+            m.bloomRejects.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private CacheMetrics.PrefixMetrics metrics(String keyPrefix) {
+        return cacheMetrics.of(keyPrefix);
+    }
+
+    /**
+     * 查询数据库并记录耗时
+     */
+    private <T> T loadFromDb(String keyPrefix, Supplier<T> loader) {
+        long begin = System.nanoTime();
+        try {
+            return loader.get();
+        } finally {
+            metrics(keyPrefix).dbLatency.record(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 返回了空值，记录一次空值命中
+     */
+    private void recordNullHit(String keyPrefix) {
+        metrics(keyPrefix).nullHits.increment();
+    }
+
+    /**
+     * 通过了布隆过滤器但数据库中查不到，记录一次空值命中和一次误判
+     * 命中缓存的空值不算误判，否则同一个不存在的id每读一次空值都会重复计数
+     */
+    private void recordNotFound(String keyPrefix) {
+        recordNullHit(keyPrefix);
+        LocalBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null) {
+            bloomFilter.recordFalsePositive();
+        }
+    }
+
+    /**
+     * 获取互斥锁，锁的值是每次加锁生成的随机标识，重建可能在其他线程中完成，不能用线程id作为标识
      * @param key 键
-     * @return boolean
+     * @return 锁的标识，获取失败返回null
      */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private String tryLock(String key) {
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_CACHE_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
     }
 
     /**
-     * 释放互斥锁
+     * 释放互斥锁，使用lua脚本判断是自己加的锁才删除，锁过期后被其他线程拿到时不会误删
      * @param key 键
+     * @param token 加锁时的标识
      */
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    private void unlock(String key, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 }
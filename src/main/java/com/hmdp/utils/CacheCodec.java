@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编解码接口，CacheClient写入redis前用它编码，读出后用它解码
+ * 读取时会根据数据的内容挑选能解码的实现，因此切换编码方式后旧格式的数据仍然可以读取
+ * @author CHAN
+ * @since 2022/4/23
+ */
+public interface CacheCodec {
+
+    /**
+     * @return 编码方式名称，对应配置项hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 判断数据是否是本编码方式写入的
+     * @param bytes redis中的原始数据，不为空
+     * @return boolean
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 编码普通缓存值
+     * @param value 值
+     * @return 字节数组
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值
+     * @param bytes 字节数组
+     * @param type 值的类型
+     * @param <T> 值的类型泛型
+     * @return 值
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     * @param redisData 逻辑过期数据
+     * @return 字节数组
+     */
+    byte[] encodeLogical(RedisData redisData);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，返回的RedisData中data已经是type类型的对象
+     * @param bytes 字节数组
+     * @param type data的类型
+     * @return 逻辑过期数据
+     */
+    RedisData decodeLogical(byte[] bytes, Class<?> type);
+
+    /**
+     * 只读取逻辑过期时间，用于统计和清理，不需要知道数据的类型
+     * @param bytes 字节数组
+     * @return 过期时间，不是逻辑过期数据时返回null
+     */
+    LocalDateTime readExpireTime(byte[] bytes);
+}
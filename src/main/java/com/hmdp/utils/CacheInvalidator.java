@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 缓存失效，修改数据库之后删除缓存统一走这里，适用于所有实体
+ * 1.在事务中调用时，等事务提交之后才删除，避免事务提交之前有请求读到旧数据又写回缓存
+ * 2.短时间窗口内的删除请求合并成一次管道删除，只发一条失效广播
+ * 3.延迟双删：第一次删除之后再延迟删除一次，清理掉第一次删除前后并发读到旧数据写回的缓存
+ * @author CHAN
+ * @since 2022/4/26
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private final CacheClient cacheClient;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cache-invalidator");
+        t.setDaemon(true);
+        return t;
+    });
+    // 合并删除的时间窗口，单位毫秒
+    private final long batchWindowMillis;
+    // 第二次删除的延迟时间，单位毫秒
+    private final long secondDeleteDelayMillis;
+    // 等待第一次删除的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // 等待第二次删除的key
+    private final Set<String> delayed = ConcurrentHashMap.newKeySet();
+    // 是否已经安排了合并删除
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean delayedFlushScheduled = new AtomicBoolean();
+
+    public CacheInvalidator(CacheClient cacheClient,
+                            @Value("${hmdp.cache.invalidate.batch-window:10}") long batchWindowMillis,
+                            @Value("${hmdp.cache.invalidate.second-delete-delay:500}") long secondDeleteDelayMillis) {
+        this.cacheClient = cacheClient;
+        this.batchWindowMillis = batchWindowMillis;
+        this.secondDeleteDelayMillis = secondDeleteDelayMillis;
+    }
+
+    /**
+     * 删除缓存，在事务中调用时等事务提交之后再删除，事务回滚则不删除
+     * @param keys 键
+     */
+    public void invalidate(String... keys) {
+        invalidate(Arrays.asList(keys));
+    }
+
+    /**
+     * 删除缓存，在事务中调用时等事务提交之后再删除，事务回滚则不删除
+     * @param keys 键
+     */
+    public void invalidate(Collection<String> keys) {
+        List<String> copy = new ArrayList<>(keys);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(copy);
+                }
+            });
+        } else {
+            enqueue(copy);
+        }
+    }
+
+    private void enqueue(Collection<String> keys) {
+        pending.addAll(keys);
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, batchWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 第一次删除，删除之后安排第二次删除
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        List<String> keys = drain(pending);
+        if (keys.isEmpty()) {
+            return;
+        }
+        deleteQuietly(keys);
+        delayed.addAll(keys);
+        if (delayedFlushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flushDelayed, secondDeleteDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 第二次删除
+     */
+    private void flushDelayed() {
+        delayedFlushScheduled.set(false);
+        List<String> keys = drain(delayed);
+        if (!keys.isEmpty()) {
+            deleteQuietly(keys);
+        }
+    }
+
+    private List<String> drain(Set<String> keys) {
+        List<String> drained = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (keys.remove(key)) {
+                drained.add(key);
+            }
+        }
+        return drained;
+    }
+
+    private void deleteQuietly(List<String> keys) {
+        try {
+            cacheClient.delete(keys);
+        } catch (Exception e) {
+            // 删除失败时缓存中的旧数据还有过期时间兜底，这里只记录日志，不影响调度线程
+            log.error("删除缓存失败, keys: {}", keys, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 停止之前把还没删除的key删掉
+        scheduler.shutdownNow();
+        List<String> keys = drain(pending);
+        keys.addAll(drain(delayed));
+        if (!keys.isEmpty()) {
+            deleteQuietly(keys);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 缓存指标，按键前缀统计命中、未命中、空值命中、返回过期数据、重建、获取锁失败的次数，
+ * 以及访问redis、查询数据库、重建缓存的耗时分布，用来根据数据调整过期时间
+ * 计数都用LongAdder，记录指标时不加锁，对读取路径的影响可以忽略
+ * @author CHAN
+ * @since 2022/4/25
+ */
+@Component
+public class CacheMetrics {
+
+    // 键前缀 -> 指标
+    private final Map<String, PrefixMetrics> metrics = new ConcurrentHashMap<>();
+    // 其他需要一起展示的瞬时值，比如线程池的队列长度
+    private final Map<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @param keyPrefix 键前缀
+     * @return 键前缀对应的指标，第一次访问时创建
+     */
+    public PrefixMetrics of(String keyPrefix) {
+        return metrics.computeIfAbsent(keyPrefix, k -> new PrefixMetrics());
+    }
+
+    /**
+     * 注册一个瞬时值，查看指标时再计算
+     * @param name 名称
+     * @param gauge 计算瞬时值
+     */
+    public void gauge(String name, Supplier<Object> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return 所有键前缀的指标快照和瞬时值
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> prefixes = new TreeMap<>();
+        metrics.forEach((prefix, m) -> prefixes.put(prefix, m.snapshot()));
+        Map<String, Object> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("prefixes", prefixes);
+        snapshot.put("gauges", values);
+        return snapshot;
+    }
+
+    /**
+     * 一个键前缀的指标
+     */
+    public static class PrefixMetrics {
+        // 请求次数
+        public final LongAdder requests = new LongAdder();
+        // 本地缓存命中次数，包括本地缓存中的空值
+        public final LongAdder localHits = new LongAdder();
+        // redis命中次数，包括redis中的空值
+        public final LongAdder redisHits = new LongAdder();
+        // 命中空值的次数
+        public final LongAdder nullHits = new LongAdder();
+        // 缓存中没有，需要查询数据库的次数
+        public final LongAdder misses = new LongAdder();
+        // 布隆过滤器直接拦截的次数
+        public final LongAdder bloomRejects = new LongAdder();
+        // 逻辑过期数据已过期，先返回旧数据的次数
+        public final LongAdder staleServed = new LongAdder();
+        // 逻辑过期数据未过期，按概率提前刷新的次数
+        public final LongAdder earlyRefreshes = new LongAdder();
+        // 重建缓存的次数和失败次数
+        public final LongAdder rebuilds = new LongAdder();
+        public final LongAdder rebuildFailures = new LongAdder();
+        // 获取重建互斥锁失败的次数
+        public final LongAdder lockFailures = new LongAdder();
+        // 访问redis的耗时
+        public final LatencyHistogram redisLatency = new LatencyHistogram();
+        // 查询数据库的耗时
+        public final LatencyHistogram dbLatency = new LatencyHistogram();
+        // 重建缓存的耗时，包括查询数据库和写入redis
+        public final LatencyHistogram rebuildLatency = new LatencyHistogram();
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> s = new LinkedHashMap<>();
+            long total = requests.sum();
+            s.put("requests", total);
+            s.put("localHits", localHits.sum());
+            s.put("redisHits", redisHits.sum());
+            s.put("nullHits", nullHits.sum());
+            s.put("misses", misses.sum());
+            s.put("bloomRejects", bloomRejects.sum());
+            s.put("hitRatio", ratio(localHits.sum() + redisHits.sum(), total));
+            s.put("nullHitRatio", ratio(nullHits.sum(), total));
+            s.put("staleServed", staleServed.sum());
+            s.put("earlyRefreshes", earlyRefreshes.sum());
+            s.put("rebuilds", rebuilds.sum());
+            s.put("rebuildFailures", rebuildFailures.sum());
+            s.put("lockFailures", lockFailures.sum());
+            s.put("redisLatency", redisLatency.snapshot());
+            s.put("dbLatency", dbLatency.snapshot());
+            s.put("rebuildLatency", rebuildLatency.snapshot());
+            return s;
+        }
+
+        private static double ratio(long part, long total) {
+            return total == 0 ? 0 : (double) part / total;
+        }
+    }
+
+    /**
+     * 固定分桶的耗时直方图，单位微秒，分位数取所在桶的上界
+     */
+    public static class LatencyHistogram {
+        // 每个桶的上界，单位微秒，最后一个桶没有上界
+        private static final long[] BOUNDS = {
+                100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000};
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * 记录一次耗时
+         * @param nanos 耗时，单位纳秒
+         */
+        public void record(long nanos) {
+            long micros = nanos / 1000;
+            int i = 0;
+            while (i < BOUNDS.length && micros > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sum.add(micros);
+            max.accumulate(micros);
+        }
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> s = new LinkedHashMap<>();
+            long n = count.sum();
+            s.put("count", n);
+            s.put("avgMicros", n == 0 ? 0 : sum.sum() / n);
+            s.put("p50Micros", percentile(n, 0.5));
+            s.put("p95Micros", percentile(n, 0.95));
+            s.put("p99Micros", percentile(n, 0.99));
+            s.put("maxMicros", max.get());
+            return s;
+        }
+
+        private long percentile(long n, double p) {
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * p);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 缓存重建的线程池，替代原来无界队列的固定线程池
+ * 1.同一个key同时只会有一个重建任务，重复提交直接忽略
+ * 2.队列有界，队列满了直接丢弃新任务，调用方继续返回旧数据，下一次读取时再尝试重建
+ * 3.每个键前缀同时排队和执行的任务数有上限，一个前缀的大量重建不会占满整个线程池
+ * 4.每个任务都有租期，和重建互斥锁的过期时间一致：开始执行时已经超过租期的任务直接跳过，
+ *   执行超过租期的任务不中断，中断可能打断正在进行的JDBC或redis请求，把连接池中的连接弄坏；
+ *   任务在写入缓存之前检查租期，过期了就不写入，写入本身也带版本号检查，晚到的写入不会覆盖新数据
+ * 不管任务是被执行、丢弃还是超时，都会调用提交时传入的释放回调，用来释放互斥锁
+ * @author CHAN
+ * @since 2022/4/25
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor pool;
+    // 每个键前缀同时排队和执行的任务数上限
+    private final int prefixConcurrency;
+    // 已提交还没结束的key，用于去重
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    // 键前缀 -> 剩余的并发数
+    private final Map<String, Semaphore> prefixPermits = new ConcurrentHashMap<>();
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    // 同一个key已经有任务时被忽略的次数
+    private final LongAdder deduplicated = new LongAdder();
+    // 队列满了被丢弃的次数
+    private final LongAdder dropped = new LongAdder();
+    // 键前缀并发数达到上限被丢弃的次数
+    private final LongAdder throttled = new LongAdder();
+    // 超过租期被跳过或执行完时已经超过租期的次数
+    private final LongAdder timedOut = new LongAdder();
+
+    public CacheRebuildExecutor(CacheMetrics cacheMetrics,
+                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.prefix-concurrency:100}") int prefixConcurrency) {
+        AtomicInteger seq = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + seq.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.prefixConcurrency = prefixConcurrency;
+        cacheMetrics.gauge("rebuild.queued", () -> pool.getQueue().size());
+        cacheMetrics.gauge("rebuild.running", running::get);
+        cacheMetrics.gauge("rebuild.submitted", submitted::sum);
+        cacheMetrics.gauge("rebuild.completed", completed::sum);
+        cacheMetrics.gauge("rebuild.failed", failed::sum);
+        cacheMetrics.gauge("rebuild.deduplicated", deduplicated::sum);
+        cacheMetrics.gauge("rebuild.dropped", dropped::sum);
+        cacheMetrics.gauge("rebuild.throttled", throttled::sum);
+        cacheMetrics.gauge("rebuild.timedOut", timedOut::sum);
+    }
+
+    /**
+     * 提交重建任务
+     * @param keyPrefix 键前缀，用于并发限制
+     * @param key 键，用于去重
+     * @param leaseMillis 租期，单位毫秒，和重建互斥锁的过期时间一致
+     * @param task 重建逻辑，参数用于判断租期是否仍然有效，写入缓存之前需要检查
+     * @param release 任务结束、被丢弃或超时后调用，用于释放互斥锁
+     * @return 任务是否被接受
+     */
+    public boolean submit(String keyPrefix, String key, long leaseMillis,
+                          Consumer<BooleanSupplier> task, Runnable release) {
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            deduplicated.increment();
+            release.run();
+            return false;
+        }
+        Semaphore permits = prefixPermits.computeIfAbsent(keyPrefix, k -> new Semaphore(prefixConcurrency));
+        if (!permits.tryAcquire()) {
+            throttled.increment();
+            pending.remove(key);
+            release.run();
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + leaseMillis;
+        Runnable finish = () -> {
+            permits.release();
+            pending.remove(key);
+            release.run();
+        };
+        try {
+            pool.execute(() -> run(key, deadline, task, finish));
+        } catch (RejectedExecutionException e) {
+            // 队列满了，丢弃新任务，调用方继续返回旧数据
+            dropped.increment();
+            log.debug("缓存重建队列已满，丢弃任务: {}", key);
+            finish.run();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    private void run(String key, long deadline, Consumer<BooleanSupplier> task, Runnable finish) {
+        if (System.currentTimeMillis() >= deadline) {
+            // 排队期间租期已经过了，锁可能已经被其他节点拿走
+            timedOut.increment();
+            finish.run();
+            return;
+        }
+        running.incrementAndGet();
+        try {
+            task.accept(() -> System.currentTimeMillis() < deadline);
+            completed.increment();
+        } catch (Exception e) {
+            if (System.currentTimeMillis() >= deadline) {
+                timedOut.increment();
+                log.warn("缓存重建超过租期，放弃写入: {}", key);
+            } else {
+                failed.increment();
+                log.error("缓存重建失败: {}", key, e);
+            }
+        } finally {
+            running.decrementAndGet();
+            finish.run();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
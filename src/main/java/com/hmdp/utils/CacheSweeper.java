@@ -0,0 +1,308 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存清理，逻辑过期的数据在redis中没有TTL，商铺被删除或者长期没人访问时key会一直留在redis中
+ * 定时用SCAN分批遍历配置的键前缀，删除两类数据：
+ * 1.逻辑过期时间已经过去超过宽限期的数据，宽限期内仍然可以返回旧数据并异步重建
+ * 2.没有TTL的空值，正常写入的空值都有TTL，没有TTL的是旧版本遗留的
+ * 每秒访问redis的次数有上限，超过时暂停，不影响正常请求；删除时比较值，读取之后被重建过的key不会被误删
+ * @author CHAN
+ * @since 2022/4/26
+ */
+@Slf4j
+@Component
+public class CacheSweeper {
+
+    private static final byte[] DELETE_IF_EQUALS_SCRIPT;
+    static {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("cacheDeleteIfEquals.lua"));
+        DELETE_IF_EQUALS_SCRIPT = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // 所有的编码方式，根据数据内容挑选
+    private final List<CacheCodec> codecs;
+
+    // 是否定时清理
+    @Value("${hmdp.cache.sweep.enabled:true}")
+    private boolean enabled;
+
+    // 要清理的键前缀，只能是逻辑过期或者带TTL的缓存
+    @Value("${hmdp.cache.sweep.prefixes:" + RedisConstants.CACHE_SHOP_KEY + "}")
+    private String[] prefixes;
+
+    // 逻辑过期之后保留的时间，单位秒
+    @Value("${hmdp.cache.sweep.grace-period:3600}")
+    private long gracePeriodSeconds;
+
+    // 每秒访问redis的次数上限
+    @Value("${hmdp.cache.sweep.ops-per-second:500}")
+    private int opsPerSecond;
+
+    // 每次SCAN的数量
+    @Value("${hmdp.cache.sweep.batch-size:100}")
+    private int batchSize;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final LongAdder reclaimedKeys = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    // 最近一次清理的结果
+    private volatile SweepReport report;
+
+    public CacheSweeper(StringRedisTemplate stringRedisTemplate, List<CacheCodec> codecs, CacheMetrics cacheMetrics) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.codecs = codecs;
+        cacheMetrics.gauge("sweep.reclaimedKeys", reclaimedKeys::sum);
+        cacheMetrics.gauge("sweep.reclaimedBytes", reclaimedBytes::sum);
+    }
+
+    /**
+     * 定时清理，上一次结束之后再等待一个间隔
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.sweep.interval:600000}",
+            initialDelayString = "${hmdp.cache.sweep.interval:600000}")
+    public void scheduledSweep() {
+        if (enabled) {
+            sweep();
+        }
+    }
+
+    /**
+     * 在后台线程中清理，用于手动触发
+     * @return 已经有清理在执行时返回false
+     */
+    public boolean sweepAsync() {
+        if (running.get()) {
+            return false;
+        }
+        CompletableFuture.runAsync(this::sweep);
+        return true;
+    }
+
+    /**
+     * 同步清理所有配置的键前缀
+     * @return 本次清理的结果，已经有清理在执行时返回null
+     */
+    public SweepReport sweep() {
+        if (!running.compareAndSet(false, true)) {
+            return null;
+        }
+        SweepReport current = new SweepReport();
+        report = current;
+        RateLimiter limiter = new RateLimiter(opsPerSecond);
+        try {
+            for (String prefix : prefixes) {
+                sweepPrefix(prefix, limiter, current);
+            }
+            current.finish(null);
+        } catch (Exception e) {
+            log.error("缓存清理失败", e);
+            current.finish(e);
+        } finally {
+            running.set(false);
+        }
+        log.info("缓存清理结束，状态: {}，扫描{}个key，删除逻辑过期{}个、空值{}个，回收{}字节，耗时{}ms",
+                current.getStatus(), current.getScanned(), current.getExpired(), current.getNulls(),
+                current.getReclaimedBytes(), current.getElapsedMillis());
+        return current;
+    }
+
+    /**
+     * @return 最近一次清理的结果，没有执行过时返回null
+     */
+    public SweepReport getReport() {
+        return report;
+    }
+
+    private void sweepPrefix(String prefix, RateLimiter limiter, SweepReport current) throws InterruptedException {
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(batchSize).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                connection -> connection.scan(options))) {
+            List<byte[]> batch = new ArrayList<>(batchSize);
+            while (cursor != null && cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == batchSize || !cursor.hasNext()) {
+                    // 一次SCAN加上每个key的PTTL和GET
+                    limiter.acquire(1 + batch.size() * 2);
+                    sweepBatch(batch, limiter, current);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭SCAN游标失败", e);
+        }
+    }
+
+    /**
+     * 读取一批key的剩余TTL和值，找出需要清理的key后用脚本删除
+     */
+    private void sweepBatch(List<byte[]> keys, RateLimiter limiter, SweepReport current) throws InterruptedException {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] key : keys) {
+                connection.pTtl(key);
+                connection.get(key);
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        LocalDateTime deadline = LocalDateTime.now().minusSeconds(gracePeriodSeconds);
+        List<byte[]> deleteKeys = new ArrayList<>();
+        List<byte[]> deleteValues = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Long pttl = (Long) results.get(i * 2);
+            byte[] value = (byte[]) results.get(i * 2 + 1);
+            current.scanned.increment();
+            // 有TTL的交给redis自己过期
+            if (value == null || pttl == null || pttl != -1) {
+                continue;
+            }
+            if (value.length == 0) {
+                deleteKeys.add(keys.get(i));
+                deleteValues.add(value);
+                continue;
+            }
+            LocalDateTime expireTime = readExpireTime(value);
+            if (expireTime != null && expireTime.isBefore(deadline)) {
+                deleteKeys.add(keys.get(i));
+                deleteValues.add(value);
+            }
+        }
+        if (deleteKeys.isEmpty()) {
+            return;
+        }
+        limiter.acquire(deleteKeys.size());
+        List<Object> deleted = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < deleteKeys.size(); i++) {
+                connection.eval(DELETE_IF_EQUALS_SCRIPT, ReturnType.INTEGER, 1, deleteKeys.get(i), deleteValues.get(i));
+            }
+            return null;
+        });
+        for (int i = 0; i < deleteKeys.size(); i++) {
+            if (!Long.valueOf(1).equals(deleted.get(i))) {
+                // 读取之后被重建或删除了
+                continue;
+            }
+            long bytes = deleteKeys.get(i).length + deleteValues.get(i).length;
+            if (deleteValues.get(i).length == 0) {
+                current.nulls.increment();
+            } else {
+                current.expired.increment();
+            }
+            current.reclaimedBytes.add(bytes);
+            reclaimedKeys.increment();
+            reclaimedBytes.add(bytes);
+        }
+    }
+
+    /**
+     * 读取逻辑过期时间，无法识别的格式和不是逻辑过期的数据返回null，不清理
+     */
+    private LocalDateTime readExpireTime(byte[] value) {
+        for (CacheCodec c : codecs) {
+            if (c.canDecode(value)) {
+                try {
+                    return c.readExpireTime(value);
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按每秒次数限流，一次清理用一个，超过时睡眠到下一个配额
+     */
+    private static class RateLimiter {
+        private final long nanosPerOp;
+        private long next = System.nanoTime();
+
+        RateLimiter(int opsPerSecond) {
+            this.nanosPerOp = 1_000_000_000L / Math.max(opsPerSecond, 1);
+        }
+
+        void acquire(int ops) throws InterruptedException {
+            long now = System.nanoTime();
+            // 空闲时不累积配额，避免之后一次性突发
+            long start = Math.max(next, now);
+            next = start + nanosPerOp * ops;
+            long wait = start - now;
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        }
+    }
+
+    /**
+     * 清理结果
+     */
+    @Data
+    public static class SweepReport {
+        // RUNNING、DONE、FAILED
+        private volatile String status = "RUNNING";
+        private final long startTime = System.currentTimeMillis();
+        private volatile Long endTime;
+        private volatile String error;
+        private final LongAdder scanned = new LongAdder();
+        // 删除的逻辑过期数据
+        private final LongAdder expired = new LongAdder();
+        // 删除的没有TTL的空值
+        private final LongAdder nulls = new LongAdder();
+        // 回收的key和值的字节数
+        private final LongAdder reclaimedBytes = new LongAdder();
+
+        void finish(Exception e) {
+            endTime = System.currentTimeMillis();
+            if (e == null) {
+                status = "DONE";
+            } else {
+                status = "FAILED";
+                error = e.getMessage();
+            }
+        }
+
+        public long getElapsedMillis() {
+            return (endTime == null ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        public long getScanned() {
+            return scanned.sum();
+        }
+
+        public long getExpired() {
+            return expired.sum();
+        }
+
+        public long getNulls() {
+            return nulls.sum();
+        }
+
+        public long getReclaimedBytes() {
+            return reclaimedBytes.sum();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热，项目启动时和手动触发时把数据库中的数据批量写入redis，包括按类型的商铺排行和GEO索引
+ * 按主键分页读取，每一页交给线程池编码后用管道一次写入，同时在途的页数有上限，避免把整张表读进内存
+ * 启动时的预热在ApplicationRunner中同步执行，执行完之前应用不会进入ACCEPTING_TRAFFIC就绪状态，
+ * ReadinessInterceptor在这之前对所有请求返回503，新节点不会直接把请求打到数据库
+ * @author CHAN
+ * @since 2022/4/24
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    // 启动时是否预热
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    // 每页的行数
+    @Value("${hmdp.cache.warm-up.page-size:500}")
+    private int pageSize;
+
+    // 同时编码和写入的线程数
+    @Value("${hmdp.cache.warm-up.parallelism:4}")
+    private int parallelism;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // 最近一次预热的进度
+    private volatile WarmUpReport report;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            warmUp();
+        }
+    }
+
+    /**
+     * 在后台线程中预热，用于手动触发
+     * @return 已经有预热在执行时返回false
+     */
+    public boolean warmUpAsync() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            CompletableFuture.runAsync(this::doWarmUp);
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 同步预热商铺、商铺类型和未结束的秒杀券库存
+     * @return 本次预热的结果，已经有预热在执行时返回null
+     */
+    public WarmUpReport warmUp() {
+        if (!running.compareAndSet(false, true)) {
+            return null;
+        }
+        return doWarmUp();
+    }
+
+    /**
+     * 执行预热，调用之前已经把running设为true，结束后清除
+     */
+    private WarmUpReport doWarmUp() {
+        WarmUpReport current = new WarmUpReport();
+        report = current;
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        // 在途的页数上限，读数据库比写redis快时阻塞读取
+        Semaphore permits = new Semaphore(parallelism * 2);
+        log.info("缓存预热开始，每页{}条，并发{}", pageSize, parallelism);
+        try {
+            // 商铺，逻辑过期；分页只查id，先读版本号再查整行数据，预热期间被修改的商铺不会被旧数据覆盖
+            warmTable("shop", shopService, "id", Shop::getId, wrapper -> wrapper.select("id"), pool, permits, current, page -> {
+                List<Long> ids = page.stream().map(Shop::getId).collect(Collectors.toList());
+                Map<String, String> versions = cacheClient.readVersions(
+                        ids.stream().map(id -> CACHE_SHOP_KEY + id).collect(Collectors.toList()));
+                Map<String, Shop> values = shopService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(shop -> CACHE_SHOP_KEY + shop.getId(), Function.identity()));
+                cacheClient.setBatchWithLogicalExpire(values, versions, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+            });
+            // 未结束的秒杀券库存，已经存在的库存正在被扣减，不能覆盖
+            LocalDateTime now = LocalDateTime.now();
+            warmTable("seckill_voucher", seckillVoucherService, "voucher_id", SeckillVoucher::getVoucherId,
+                    wrapper -> wrapper.gt("end_time", now), pool, permits, current, this::writeSeckillStock);
+            // 商铺类型整体是一个key，数据量很小，一次查出
+            warmShopTypes(current);
+            // 按类型的商铺排行和GEO索引还没有构建过时全量构建
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_TYPE_RANK_READY_KEY))) {
+                shopService.rebuildShopTypeRank();
+            }
+            current.finish(null);
+        } catch (Exception e) {
+            // 预热失败不影响启动，没有预热到的数据在第一次访问时再加载
+            log.error("缓存预热失败", e);
+            current.finish(e);
+        } finally {
+            pool.shutdown();
+            running.set(false);
+        }
+        log.info("缓存预热结束，状态: {}，各表行数: {}，耗时{}ms，{}行/秒",
+                current.getStatus(), current.getRows(), current.getElapsedMillis(), current.getRowsPerSecond());
+        return current;
+    }
+
+    /**
+     * @return 最近一次预热的进度，没有执行过时返回null
+     */
+    public WarmUpReport getReport() {
+        return report;
+    }
+
+    /**
+     * 按主键分页读取一张表，每一页提交给线程池写入，等所有页都写完才返回
+     * @param table 表名，用于记录进度
+     * @param service 查询的service
+     * @param idColumn 主键列名
+     * @param idGetter 取出主键
+     * @param condition 额外的查询条件
+     * @param writer 写入一页数据
+     */
+    private <T> void warmTable(String table, IService<T> service, String idColumn, Function<T, Long> idGetter,
+                               Consumer<QueryWrapper<T>> condition, ExecutorService pool, Semaphore permits,
+                               WarmUpReport current, Consumer<List<T>> writer) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long lastId = 0;
+        int pageNo = 0;
+        while (true) {
+            QueryWrapper<T> wrapper = new QueryWrapper<>();
+            condition.accept(wrapper);
+            wrapper.gt(idColumn, lastId).orderByAsc(idColumn).last("limit " + pageSize);
+            List<T> page = service.list(wrapper);
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = idGetter.apply(page.get(page.size() - 1));
+            int no = ++pageNo;
+            permits.acquire();
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    writer.accept(page);
+                    long total = current.addRows(table, page.size());
+                    log.debug("缓存预热 {} 第{}页完成，累计{}条", table, no, total);
+                } finally {
+                    permits.release();
+                }
+            }, pool));
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        // 任何一页失败都会在这里抛出
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * 秒杀券库存用SETNX写入，redis中已有的库存以redis为准；同时写入秒杀时间和分段数，秒杀的lua脚本用它校验
+     * 分段库存的秒杀券不写不分段的库存key，只按数据库中的剩余库存补回redis中丢失的分段，已有的分段以redis为准
+     */
+    private void writeSeckillStock(List<SeckillVoucher> vouchers) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                int segments = voucher.getSegments() == null ? 1 : voucher.getSegments();
+                if (segments <= 1) {
+                    conn.setNX(SECKILL_STOCK_KEY + voucher.getVoucherId(), voucher.getStock().toString());
+                }
+                Map<String, String> window = new HashMap<>(4);
+                window.put(SECKILL_VOUCHER_BEGIN_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime())));
+                window.put(SECKILL_VOUCHER_END_FIELD, String.valueOf(LocalDateTimeUtil.toEpochMilli(voucher.getEndTime())));
+                window.put(SECKILL_VOUCHER_SEGMENTS_FIELD, String.valueOf(segments));
+                conn.hMSet(SECKILL_VOUCHER_KEY + voucher.getVoucherId(), window);
+            }
+            return null;
+        });
+        for (SeckillVoucher voucher : vouchers) {
+            if (voucher.getSegments() != null && voucher.getSegments() > 1) {
+                segmentedStock.restore(voucher);
+            }
+        }
+    }
+
+    /**
+     * 商铺类型列表不存在时才写入，由ShopTypeServiceImpl统一写入
+     */
+    private void warmShopTypes(WarmUpReport current) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(CACHE_SHOP_TYPE_KEY))) {
+            return;
+        }
+        // 和refreshTypes()一样整体替换，多个节点同时预热时列表也不会重复
+        current.addRows("shop_type", shopTypeService.cacheTypes());
+    }
+
+    /**
+     * 预热进度
+     */
+    @Data
+    public static class WarmUpReport {
+        // RUNNING、DONE、FAILED
+        private volatile String status = "RUNNING";
+        private final long startTime = System.currentTimeMillis();
+        private volatile Long endTime;
+        private volatile String error;
+        // 表名 -> 已写入的行数
+        private final Map<String, Long> rows = new ConcurrentHashMap<>();
+
+        long addRows(String table, int count) {
+            return rows.merge(table, (long) count, Long::sum);
+        }
+
+        void finish(Exception e) {
+            endTime = System.currentTimeMillis();
+            if (e == null) {
+                status = "DONE";
+            } else {
+                status = "FAILED";
+                error = e.getMessage();
+            }
+        }
+
+        public long getElapsedMillis() {
+            return (endTime == null ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        public long getRowsPerSecond() {
+            long total = rows.values().stream().mapToLong(Long::longValue).sum();
+            return total * 1000 / Math.max(getElapsedMillis(), 1);
+        }
+
+        public Map<String, Long> getRows() {
+            return new LinkedHashMap<>(rows);
+        }
+    }
+}
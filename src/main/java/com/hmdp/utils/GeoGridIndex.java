@@ -0,0 +1,350 @@
+package com.hmdp.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 本地网格空间索引，按分区（商铺类型）把点放进经纬度等分的格子里，附近查询不需要访问redis
+ * 最近k个：从所在格子开始一圈一圈向外找，已经找到k个并且下一圈的最近距离比第k个还远时停止
+ * 半径查询：只遍历半径外接矩形覆盖的格子，格子比分区中有数据的格子还多时直接遍历有数据的格子
+ * 点上直接带着列表展示需要的数据，查询结果不需要再查一次详情
+ * 写入之间互斥，读取不加锁：点是不可变的，读取时跳过已经被替换的点
+ * @author CHAN
+ * @since 2022/4/27
+ */
+public class GeoGridIndex<T> {
+
+    // 和redis GEO命令相同的地球半径，距离的计算结果和GEORADIUS一致
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    // 格子的边长，单位度
+    private final double cellDegrees;
+    // 分区 -> 格子
+    private final Map<Long, Partition<T>> partitions = new ConcurrentHashMap<>();
+    // id -> 当前的点
+    private final Map<Long, Point<T>> points = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellDegrees 格子的边长，单位度，0.01度约1公里
+     */
+    public GeoGridIndex(double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 1) {
+            throw new IllegalArgumentException("格子边长必须在(0, 1]之间: " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * 新增或移动点，分区变了从原来的分区中删除
+     * @param id id
+     * @param partition 分区
+     * @param x 经度
+     * @param y 纬度
+     * @param value 点上的数据，放入之后不能修改
+     */
+    public synchronized void put(Long id, Long partition, double x, double y, T value) {
+        Point<T> point = new Point<>(id, partition, x, y, cellKey(cell(x), cell(y)), value);
+        Point<T> old = points.put(id, point);
+        partitions.computeIfAbsent(partition, k -> new Partition<>()).add(cell(x), cell(y), point);
+        if (old != null) {
+            partitions.get(old.partition).remove(old);
+        }
+    }
+
+    /**
+     * 删除点
+     * @param id id
+     */
+    public synchronized void remove(Long id) {
+        Point<T> old = points.remove(id);
+        if (old != null) {
+            partitions.get(old.partition).remove(old);
+        }
+    }
+
+    /**
+     * 半径内距离最近的k个点
+     * @param partition 分区
+     * @param x 经度
+     * @param y 纬度
+     * @param radiusMeters 半径，单位米
+     * @param k 数量
+     * @return 按距离升序
+     */
+    public List<Hit<T>> nearest(Long partition, double x, double y, double radiusMeters, int k) {
+        Partition<T> p = partitions.get(partition);
+        if (p == null || k <= 0) {
+            return Collections.emptyList();
+        }
+        // 距离最远的在堆顶
+        PriorityQueue<Hit<T>> heap = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b.distance, a.distance));
+        int cx = cell(x);
+        int cy = cell(y);
+        // 超出分区中有数据的格子范围之后不用再找
+        int maxRing = Math.max(Math.max(cx - p.minCx, p.maxCx - cx), Math.max(cy - p.minCy, p.maxCy - cy));
+        for (int r = 0; r <= maxRing; r++) {
+            double bound = ringDistanceBound(y, r);
+            if (bound > radiusMeters || (heap.size() == k && bound > heap.peek().distance)) {
+                break;
+            }
+            for (Set<Point<T>> cell : ring(p, cx, cy, r)) {
+                for (Point<T> point : cell) {
+                    if (points.get(point.id) != point) {
+                        continue;
+                    }
+                    double d = distance(x, y, point.x, point.y);
+                    if (d > radiusMeters) {
+                        continue;
+                    }
+                    if (heap.size() < k) {
+                        heap.add(new Hit<>(point.id, point.value, d));
+                    } else if (d < heap.peek().distance) {
+                        heap.poll();
+                        heap.add(new Hit<>(point.id, point.value, d));
+                    }
+                }
+            }
+        }
+        List<Hit<T>> hits = new ArrayList<>(heap);
+        hits.sort(Hit.BY_DISTANCE);
+        return hits;
+    }
+
+    /**
+     * 半径内的所有点
+     * @param partition 分区
+     * @param x 经度
+     * @param y 纬度
+     * @param radiusMeters 半径，单位米
+     * @return 按距离升序
+     */
+    public List<Hit<T>> within(Long partition, double x, double y, double radiusMeters) {
+        Partition<T> p = partitions.get(partition);
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        double dy = radiusMeters / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(y) + dy)));
+        double dx = cos <= 0 ? 360 : dy / cos;
+        int fromCx = Math.max(cell(x - dx), p.minCx);
+        int toCx = Math.min(cell(x + dx), p.maxCx);
+        int fromCy = Math.max(cell(y - dy), p.minCy);
+        int toCy = Math.min(cell(y + dy), p.maxCy);
+        Collection<Set<Point<T>>> cells;
+        long boxCells = (long) Math.max(0, toCx - fromCx + 1) * Math.max(0, toCy - fromCy + 1);
+        if (boxCells > p.cells.size()) {
+            // 数据稀疏时直接遍历有数据的格子
+            cells = p.cells.values();
+        } else {
+            cells = new ArrayList<>();
+            for (int i = fromCx; i <= toCx; i++) {
+                for (int j = fromCy; j <= toCy; j++) {
+                    Set<Point<T>> cell = p.cells.get(cellKey(i, j));
+                    if (cell != null) {
+                        cells.add(cell);
+                    }
+                }
+            }
+        }
+        List<Hit<T>> hits = new ArrayList<>();
+        for (Set<Point<T>> cell : cells) {
+            for (Point<T> point : cell) {
+                if (points.get(point.id) != point) {
+                    continue;
+                }
+                double d = distance(x, y, point.x, point.y);
+                if (d <= radiusMeters) {
+                    hits.add(new Hit<>(point.id, point.value, d));
+                }
+            }
+        }
+        hits.sort(Hit.BY_DISTANCE);
+        return hits;
+    }
+
+    /**
+     * 半径内的点按权重和距离综合排序后分页，排序值 = 权重 * decay / (decay + 距离)，
+     * 距离为decay时排序值减半，排序值相同时距离近的在前
+     * @param partition 分区
+     * @param x 经度
+     * @param y 纬度
+     * @param radiusMeters 半径，单位米
+     * @param weight 点的权重，例如评分、销量
+     * @param decayMeters 距离衰减，单位米
+     * @param from 跳过的条数
+     * @param size 返回的条数
+     * @return 按排序值降序
+     */
+    public List<Hit<T>> ranked(Long partition, double x, double y, double radiusMeters,
+                               ToDoubleFunction<T> weight, double decayMeters, int from, int size) {
+        List<Hit<T>> hits = within(partition, x, y, radiusMeters);
+        if (hits.size() <= from) {
+            return Collections.emptyList();
+        }
+        Map<Hit<T>, Double> ranks = new IdentityHashMap<>(hits.size());
+        for (Hit<T> hit : hits) {
+            ranks.put(hit, weight.applyAsDouble(hit.value) * decayMeters / (decayMeters + hit.distance));
+        }
+        // within已经按距离排好，稳定排序保证排序值相同时距离近的在前
+        hits.sort((a, b) -> Double.compare(ranks.get(b), ranks.get(a)));
+        return new ArrayList<>(hits.subList(from, Math.min(hits.size(), from + size)));
+    }
+
+    /**
+     * @return 分区数、点数、格子数和估算的内存占用
+     */
+    public Map<String, Object> stats() {
+        long cellCount = 0;
+        for (Partition<T> p : partitions.values()) {
+            cellCount += p.cells.size();
+        }
+        // 按64位JVM开启压缩指针估算：每个点约对象40字节、id和格子中的集合节点各32字节、Long 16字节，
+        // 每个格子约map节点32字节、Long 16字节、集合96字节，不含点上的数据
+        long estimatedBytes = points.size() * (40 + 32 + 32 + 16) + cellCount * (32 + 16 + 96);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("partitions", partitions.size());
+        stats.put("points", points.size());
+        stats.put("cells", cellCount);
+        stats.put("cellDegrees", cellDegrees);
+        stats.put("estimatedBytes", estimatedBytes);
+        return stats;
+    }
+
+    /**
+     * 两点之间的球面距离，单位米
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double sinLat = Math.sin(Math.toRadians(y2 - y1) / 2);
+        double sinLon = Math.sin(Math.toRadians(x2 - x1) / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(y1)) * Math.cos(Math.toRadians(y2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * 第r圈格子中的点到查询点的最近距离的下界：中间隔了r-1个完整的格子，经度方向按这一圈最高纬度的长度算
+     */
+    private double ringDistanceBound(double y, int r) {
+        if (r <= 1) {
+            return 0;
+        }
+        double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(y) + (r + 1) * cellDegrees)));
+        return (r - 1) * cellDegrees * METERS_PER_DEGREE * Math.max(0, cos);
+    }
+
+    /**
+     * 第r圈中有数据的格子
+     */
+    private static <T> List<Set<Point<T>>> ring(Partition<T> p, int cx, int cy, int r) {
+        List<Set<Point<T>>> cells = new ArrayList<>();
+        if (r == 0) {
+            addCell(p, cx, cy, cells);
+            return cells;
+        }
+        for (int i = -r; i <= r; i++) {
+            addCell(p, cx + i, cy - r, cells);
+            addCell(p, cx + i, cy + r, cells);
+        }
+        for (int j = -r + 1; j < r; j++) {
+            addCell(p, cx - r, cy + j, cells);
+            addCell(p, cx + r, cy + j, cells);
+        }
+        return cells;
+    }
+
+    private static <T> void addCell(Partition<T> p, int cx, int cy, List<Set<Point<T>>> cells) {
+        Set<Point<T>> cell = p.cells.get(cellKey(cx, cy));
+        if (cell != null) {
+            cells.add(cell);
+        }
+    }
+
+    private int cell(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * 一个分区的格子，格子只增不减的范围用来限制向外查找的圈数
+     */
+    private static class Partition<T> {
+        private final Map<Long, Set<Point<T>>> cells = new ConcurrentHashMap<>();
+        private volatile int minCx = Integer.MAX_VALUE;
+        private volatile int maxCx = Integer.MIN_VALUE;
+        private volatile int minCy = Integer.MAX_VALUE;
+        private volatile int maxCy = Integer.MIN_VALUE;
+
+        void add(int cx, int cy, Point<T> point) {
+            cells.computeIfAbsent(point.cell, k -> ConcurrentHashMap.newKeySet()).add(point);
+            minCx = Math.min(minCx, cx);
+            maxCx = Math.max(maxCx, cx);
+            minCy = Math.min(minCy, cy);
+            maxCy = Math.max(maxCy, cy);
+        }
+
+        void remove(Point<T> point) {
+            Set<Point<T>> cell = cells.get(point.cell);
+            if (cell != null) {
+                cell.remove(point);
+                if (cell.isEmpty()) {
+                    cells.remove(point.cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * 索引中的点，不可变，按引用比较
+     */
+    private static class Point<T> {
+        private final Long id;
+        private final Long partition;
+        private final double x;
+        private final double y;
+        private final long cell;
+        private final T value;
+
+        Point(Long id, Long partition, double x, double y, long cell, T value) {
+            this.id = id;
+            this.partition = partition;
+            this.x = x;
+            this.y = y;
+            this.cell = cell;
+            this.value = value;
+        }
+    }
+
+    /**
+     * 查询结果
+     */
+    public static class Hit<T> {
+        private static final Comparator<Hit<?>> BY_DISTANCE = Comparator.comparingDouble(h -> h.distance);
+
+        private final Long id;
+        private final T value;
+        // 距离，单位米
+        private final double distance;
+
+        Hit(Long id, T value, double distance) {
+            this.id = id;
+            this.value = value;
+            this.distance = distance;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+}
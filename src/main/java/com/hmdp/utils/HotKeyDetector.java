@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 热点key探测，统计最近一段时间窗口内每个key的访问次数，超过阈值的key升级为热点key
+ * 计数使用count-min sketch，内存占用固定，和key的数量无关；估计值只会偏大不会偏小
+ * 时间窗口被切成若干个小格子，每个格子一个sketch，过了一个格子的时间就清空最老的格子，实现滑动窗口
+ * 热点key最多保留topK个，满了之后新的热点key会挤掉访问次数最少的那个；窗口滑动后访问次数降到阈值一半以下的热点key被降级
+ * @author CHAN
+ * @since 2022/4/24
+ */
+public class HotKeyDetector {
+
+    // 每个sketch的行数，即哈希函数个数
+    private static final int DEPTH = 4;
+    // 每个sketch的列数
+    private static final int WIDTH = 4096;
+
+    // 滑动窗口的格子，每个格子是一个DEPTH*WIDTH的计数数组
+    private final AtomicIntegerArray[] slots;
+    // 每个格子的时长，单位毫秒
+    private final long slotMillis;
+    // 窗口内访问次数达到阈值就升级为热点key
+    private final int threshold;
+    // 最多保留的热点key个数
+    private final int topK;
+    // 当前格子的下标
+    private volatile int current;
+    // 当前格子的结束时间
+    private volatile long currentEnd;
+    // 热点key -> 统计信息
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    // 热点key被降级时的回调
+    private volatile Consumer<String> demoteListener = key -> { };
+
+    /**
+     * @param windowMillis 滑动窗口时长，单位毫秒
+     * @param slotCount 窗口切分的格子数
+     * @param threshold 窗口内访问次数达到阈值就升级为热点key
+     * @param topK 最多保留的热点key个数
+     */
+    public HotKeyDetector(long windowMillis, int slotCount, int threshold, int topK) {
+        this.slots = new AtomicIntegerArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        this.slotMillis = Math.max(windowMillis / slotCount, 1);
+        this.threshold = threshold;
+        this.topK = topK;
+        this.currentEnd = System.currentTimeMillis() + slotMillis;
+    }
+
+    /**
+     * 记录一次访问
+     * @param key 键
+     * @return 记录之后这个key是否是热点key
+     */
+    public boolean record(String key) {
+        rotateIfNeeded();
+        long[] hash = hash(key);
+        AtomicIntegerArray slot = slots[current];
+        for (int i = 0; i < DEPTH; i++) {
+            slot.incrementAndGet(index(hash, i));
+        }
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey != null) {
+            // 已经是热点key，不需要再估计
+            hotKey.accesses.increment();
+            return true;
+        }
+        if (estimate(hash) < threshold) {
+            return false;
+        }
+        promote(key);
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 记录一次热点key在本地命中
+     * @param key 键
+     */
+    public void recordLocalHit(String key) {
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey != null) {
+            hotKey.localHits.increment();
+        }
+    }
+
+    /**
+     * @param key 键
+     * @return 是否是热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 估计key在当前窗口内的访问次数
+     * @param key 键
+     * @return 访问次数，可能偏大
+     */
+    public long estimate(String key) {
+        return estimate(hash(key));
+    }
+
+    /**
+     * 当前所有热点key的快照，按窗口内访问次数从大到小排列
+     * @return 热点key列表
+     */
+    public List<HotKeyStats> hotKeys() {
+        List<HotKeyStats> list = new ArrayList<>(hotKeys.size());
+        hotKeys.forEach((key, hotKey) -> list.add(new HotKeyStats(
+                key, estimate(key), hotKey.promotedAt, hotKey.accesses.sum(), hotKey.localHits.sum())));
+        list.sort(Comparator.comparingLong(HotKeyStats::getWindowCount).reversed());
+        return list;
+    }
+
+    /**
+     * 设置降级回调，由调用方清理被降级的key的本地副本
+     * @param listener 降级回调
+     */
+    public void onDemote(Consumer<String> listener) {
+        this.demoteListener = listener;
+    }
+
+    /**
+     * 升级为热点key，满了就和访问次数最少的热点key比较，比它多才替换
+     */
+    private synchronized void promote(String key) {
+        if (hotKeys.containsKey(key)) {
+            return;
+        }
+        if (hotKeys.size() >= topK) {
+            long count = estimate(key);
+            String coldest = null;
+            long coldestCount = Long.MAX_VALUE;
+            for (String k : hotKeys.keySet()) {
+                long c = estimate(k);
+                if (c < coldestCount) {
+                    coldest = k;
+                    coldestCount = c;
+                }
+            }
+            if (coldest == null || coldestCount >= count) {
+                return;
+            }
+            demote(coldest);
+        }
+        hotKeys.put(key, new HotKey());
+    }
+
+    private void demote(String key) {
+        if (hotKeys.remove(key) != null) {
+            demoteListener.accept(key);
+        }
+    }
+
+    /**
+     * 当前格子到时间了就滑动窗口：清空最老的格子作为新的当前格子，再把冷下来的热点key降级
+     * 访问量大的时候几乎每个格子都会有请求进来，不需要额外的定时任务
+     */
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now < currentEnd) {
+            return;
+        }
+        synchronized (this) {
+            if (now < currentEnd) {
+                return;
+            }
+            // 距离上次滑动可能过了好几个格子，最多把整个窗口清空一遍
+            long elapsed = Math.min((now - currentEnd) / slotMillis + 1, slots.length);
+            int next = current;
+            for (long i = 0; i < elapsed; i++) {
+                next = (next + 1) % slots.length;
+                AtomicIntegerArray slot = slots[next];
+                for (int j = 0; j < slot.length(); j++) {
+                    slot.set(j, 0);
+                }
+            }
+            current = next;
+            currentEnd = now - (now - currentEnd) % slotMillis + slotMillis;
+            // 降到阈值一半以下才降级，避免在阈值附近来回升降
+            for (String key : hotKeys.keySet()) {
+                if (estimate(key) * 2 < threshold) {
+                    demote(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 每一行取最小值作为估计值，再把所有格子的估计值加起来
+     */
+    private long estimate(long[] hash) {
+        long sum = 0;
+        for (AtomicIntegerArray slot : slots) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, slot.get(index(hash, i)));
+            }
+            sum += min;
+        }
+        return sum;
+    }
+
+    private static long[] hash(String key) {
+        return MurmurHash.hash128(key);
+    }
+
+    /**
+     * 第i行的下标，和布隆过滤器一样用两个64位哈希值组合出多个哈希函数
+     */
+    private static int index(long[] hash, int i) {
+        long combined = hash[0] + i * hash[1];
+        return i * WIDTH + (int) ((combined & Long.MAX_VALUE) % WIDTH);
+    }
+
+    /**
+     * 热点key的统计信息
+     */
+    @Data
+    @AllArgsConstructor
+    public static class HotKeyStats {
+        private String key;
+        // 当前窗口内的访问次数（估计值）
+        private long windowCount;
+        // 升级为热点key的时间戳
+        private long promotedAt;
+        // 升级以来的访问次数
+        private long accesses;
+        // 升级以来在本地命中的次数
+        private long localHits;
+
+        public double getLocalHitRate() {
+            return accesses == 0 ? 0 : (double) localHits / accesses;
+        }
+    }
+
+    private static class HotKey {
+        // 升级为热点key的时间
+        private final long promotedAt = System.currentTimeMillis();
+        // 升级以来的访问次数
+        private final LongAdder accesses = new LongAdder();
+        // 升级以来在本地命中的次数
+        private final LongAdder localHits = new LongAdder();
+    }
+}
@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.CACHE_LOCAL_MAX_SIZE;
+
+/**
+ * 直接把缓存中已经序列化好的JSON写入HTTP响应，不经过反序列化成对象再由Jackson序列化回JSON
+ * 成功响应的外层Result只在启动时序列化一次，得到data前后的两段字节，写响应时依次写出前缀、数据和后缀
+ * 前缀和后缀用和Spring MVC相同的ObjectMapper生成，响应内容和直接返回Result完全一致
+ * 支持条件请求：ETag是data的MD5，和序列化结果一起缓存，客户端带着If-None-Match或If-Modified-Since请求时，
+ * 本地缓存命中的数据不需要查询数据库、反序列化和序列化，直接返回304
+ * @author CHAN
+ * @since 2022/4/27
+ */
+@Component
+public class JsonResponseWriter {
+
+    private static final String MARKER = "__hmdp_data__";
+
+    private final ObjectMapper objectMapper;
+    // Result.ok(data)中data之前和之后的字节
+    private final byte[] okPrefix;
+    private final byte[] okSuffix;
+    // 缓存key -> 本地缓存中的对象和它序列化后的字节、ETag，对象被替换之后重新序列化
+    private final LRUCache<String, Serialized> serialized = CacheUtil.newLRUCache(CACHE_LOCAL_MAX_SIZE);
+
+    public JsonResponseWriter(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        String envelope = new String(toJson(Result.ok(MARKER)), StandardCharsets.UTF_8);
+        int at = envelope.indexOf("\"" + MARKER + "\"");
+        this.okPrefix = envelope.substring(0, at).getBytes(StandardCharsets.UTF_8);
+        this.okSuffix = envelope.substring(at + MARKER.length() + 2).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 用Spring MVC的ObjectMapper序列化
+     * @param value 对象
+     * @return JSON字节
+     */
+    public byte[] toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化响应失败", e);
+        }
+    }
+
+    /**
+     * 本地缓存命中时返回的是同一个对象，这时直接复用上一次序列化的结果
+     * @param key 缓存key
+     * @param value 从缓存工具类查到的对象
+     * @return value序列化后的字节，不能修改
+     */
+    public byte[] toJson(String key, Object value) {
+        return serialize(key, value).json;
+    }
+
+    /**
+     * 写出支持条件请求的成功响应，ETag和请求中的一致或者数据在If-Modified-Since之后没有修改时返回304
+     * @param webRequest 请求和响应
+     * @param key 缓存key
+     * @param data 从缓存工具类查到的对象，或者已经序列化好的JSON字节
+     * @param lastModified 数据的修改时间，单位毫秒，未知时传-1
+     * @param cacheControl 允许客户端和代理缓存的时间
+     */
+    public void writeOk(ServletWebRequest webRequest, String key, Object data, long lastModified,
+                        CacheControl cacheControl) throws IOException {
+        HttpServletResponse response = webRequest.getResponse();
+        Serialized payload = serialize(key, data);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        if (webRequest.checkNotModified(payload.etag, lastModified)) {
+            return;
+        }
+        writeOk(response, payload.json);
+    }
+
+    /**
+     * 写出支持条件请求的完整响应
+     * @param webRequest 请求和响应
+     * @param key 缓存key
+     * @param body 已经序列化好的完整响应
+     * @param cacheControl 允许客户端和代理缓存的时间
+     */
+    public void write(ServletWebRequest webRequest, String key, byte[] body, CacheControl cacheControl) throws IOException {
+        HttpServletResponse response = webRequest.getResponse();
+        Serialized payload = serialize(key, body);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        if (webRequest.checkNotModified(payload.etag)) {
+            return;
+        }
+        write(response, body);
+    }
+
+    /**
+     * 写出成功响应，data为已经序列化好的JSON
+     * @param response 响应
+     * @param data data的JSON字节
+     */
+    public void writeOk(HttpServletResponse response, byte[] data) throws IOException {
+        write(response, okPrefix, data, okSuffix);
+    }
+
+    /**
+     * 写出普通的Result，用于失败等不需要缓存的响应
+     * @param response 响应
+     * @param result 结果
+     */
+    public void write(HttpServletResponse response, Result result) throws IOException {
+        write(response, toJson(result));
+    }
+
+    /**
+     * 依次写出多段已经序列化好的JSON，合起来是一个完整的响应
+     * @param response 响应
+     * @param parts JSON字节
+     */
+    public void write(HttpServletResponse response, byte[]... parts) throws IOException {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(length);
+        ServletOutputStream out = response.getOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+    }
+
+    /**
+     * 同一个对象只序列化和计算ETag一次，已经是字节数组的直接使用
+     */
+    private Serialized serialize(String key, Object value) {
+        Serialized cached = serialized.get(key, false);
+        if (cached != null && cached.source == value) {
+            return cached;
+        }
+        byte[] json = value instanceof byte[] ? (byte[]) value : toJson(value);
+        Serialized next = new Serialized(value, json, "\"0" + DigestUtils.md5DigestAsHex(json) + "\"");
+        serialized.put(key, next);
+        return next;
+    }
+
+    private static class Serialized {
+        private final Object source;
+        private final byte[] json;
+        private final String etag;
+
+        Serialized(Object source, byte[] json, String etag) {
+            this.source = source;
+            this.json = json;
+            this.etag = etag;
+        }
+    }
+}
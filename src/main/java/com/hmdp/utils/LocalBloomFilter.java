@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JVM内的布隆过滤器，用来在访问redis和数据库之前拦截一定不存在的id，解决缓存穿透问题
+ * 布隆过滤器判断不存在就一定不存在，判断存在则有一定的误判率
+ * 位数组用AtomicLongArray实现，添加和查询都不需要加锁
+ * @author CHAN
+ * @since 2022/4/21
+ */
+public class LocalBloomFilter {
+
+    // 位数组
+    private final AtomicLongArray bits;
+    // 位数组长度
+    private final long bitSize;
+    // 哈希函数个数
+    private final int hashCount;
+    // 已添加的元素个数
+    private final LongAdder insertions = new LongAdder();
+    // 查询时判断为可能存在的次数
+    private final LongAdder mightContainCount = new LongAdder();
+    // 查询时判断为一定不存在的次数，即真阴性次数
+    private final LongAdder rejectedCount = new LongAdder();
+    // 判断为可能存在，但数据库中实际不存在的次数，即误判次数
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    /**
+     * @param expectedInsertions 预计插入的元素个数
+     * @param fpp 期望的误判率
+     */
+    public LocalBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n * ln(p) / (ln2)^2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.max(m, 64);
+        this.bits = new AtomicLongArray((int) ((m + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        // k = m / n * ln2
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    /**
+     * 添加元素
+     * @param value 元素
+     */
+    public void put(Object value) {
+        long[] hash = MurmurHash.hash128(String.valueOf(value));
+        for (int i = 0; i < hashCount; i++) {
+            setBit(index(hash, i));
+        }
+        insertions.increment();
+    }
+
+    /**
+     * 判断元素是否可能存在
+     * @param value 元素
+     * @return false代表一定不存在，true代表可能存在
+     */
+    public boolean mightContain(Object value) {
+        long[] hash = MurmurHash.hash128(String.valueOf(value));
+        for (int i = 0; i < hashCount; i++) {
+            if (!getBit(index(hash, i))) {
+                rejectedCount.increment();
+                return false;
+            }
+        }
+        mightContainCount.increment();
+        return true;
+    }
+
+    /**
+     * 记录一次误判，过滤器判断存在但数据库中查不到时调用
+     */
+    public void recordFalsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    /**
+     * 根据当前元素个数估算的理论误判率 (1 - e^(-kn/m))^k
+     * @return 理论误判率
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * insertions.sum() / bitSize), hashCount);
+    }
+
+    /**
+     * 实际观测到的误判率，误判次数 / 查询不存在的id的次数，不存在的id要么被拦截，要么被误判放行
+     * 分母不能用判断为可能存在的次数，其中大部分是真实存在的id，会把误判率算低
+     * @return 观测误判率
+     */
+    public double observedFpp() {
+        long falsePositives = falsePositiveCount.sum();
+        long negatives = falsePositives + rejectedCount.sum();
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    public long getMightContainCount() {
+        return mightContainCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.sum();
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 双重哈希，用两个64位哈希值组合出第i个哈希函数的下标
+     */
+    private long index(long[] hash, int i) {
+        long combined = hash[0] + i * hash[1];
+        return (combined & Long.MAX_VALUE) % bitSize;
+    }
+
+    private void setBit(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(i);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(i, old, old | mask));
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,242 @@
+package com.hmdp.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地n-gram倒排索引，用于商铺名称、商圈、地址的关键字搜索，替代数据库的like '%name%'全表扫描
+ * 每个字段按单字和相邻两个字切分，中文名称没有分词也能搜索；查询时取出包含关键字所有bigram的文档，
+ * 再检查关键字在哪个字段中连续出现，按匹配程度和评分排序
+ * 写入之间互斥，读取不加锁：写入时先替换文档再增删倒排表，查询时用文档当前的内容校验匹配，不会返回不匹配的结果
+ * @author CHAN
+ * @since 2022/4/27
+ */
+public class NgramIndex {
+
+    // 匹配程度，从高到低
+    private static final int MATCH_NAME_EQUALS = 100;
+    private static final int MATCH_NAME_PREFIX = 80;
+    private static final int MATCH_NAME_CONTAINS = 60;
+    private static final int MATCH_AREA_CONTAINS = 40;
+    private static final int MATCH_ADDRESS_CONTAINS = 30;
+    // 关键字的每个bigram都出现了，但不是连续出现
+    private static final int MATCH_GRAMS = 10;
+
+    // gram -> 包含它的文档id
+    private final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+    // 文档id -> 文档
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    /**
+     * 新增或更新文档
+     * @param id 文档id
+     * @param name 名称
+     * @param area 商圈
+     * @param address 地址
+     * @param score 评分，匹配程度相同时评分高的排在前面
+     */
+    public synchronized void put(Long id, String name, String area, String address, Integer score) {
+        Doc doc = new Doc(normalize(name), normalize(area), normalize(address), score == null ? 0 : score);
+        Doc old = docs.put(id, doc);
+        Set<String> oldGrams = old == null ? Collections.emptySet() : old.grams();
+        Set<String> newGrams = doc.grams();
+        for (String gram : newGrams) {
+            if (!oldGrams.contains(gram)) {
+                postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+        }
+        for (String gram : oldGrams) {
+            if (!newGrams.contains(gram)) {
+                removePosting(gram, id);
+            }
+        }
+    }
+
+    /**
+     * 删除文档
+     * @param id 文档id
+     */
+    public synchronized void remove(Long id) {
+        Doc old = docs.remove(id);
+        if (old != null) {
+            for (String gram : old.grams()) {
+                removePosting(gram, id);
+            }
+        }
+    }
+
+    /**
+     * 搜索，结果按匹配程度、评分、id排序
+     * @param keyword 关键字
+     * @param from 跳过的条数
+     * @param size 返回的条数
+     * @return 文档id
+     */
+    public List<Long> search(String keyword, int from, int size) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<Long> candidates = candidates(query);
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<long[]> hits = new ArrayList<>(candidates.size());
+        for (Long id : candidates) {
+            Doc doc = docs.get(id);
+            if (doc == null) {
+                continue;
+            }
+            int quality = doc.match(query);
+            if (quality > 0) {
+                hits.add(new long[]{id, quality, doc.score});
+            }
+        }
+        hits.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1])
+                : a[2] != b[2] ? Long.compare(b[2], a[2]) : Long.compare(a[0], b[0]));
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < hits.size() && ids.size() < size; i++) {
+            ids.add(hits.get(i)[0]);
+        }
+        return ids;
+    }
+
+    /**
+     * @return 文档数、gram数、倒排表总长度和估算的内存占用
+     */
+    public Map<String, Object> stats() {
+        long postingCount = 0;
+        long gramChars = 0;
+        for (Map.Entry<String, Set<Long>> entry : postings.entrySet()) {
+            postingCount += entry.getValue().size();
+            gramChars += entry.getKey().length();
+        }
+        long docChars = 0;
+        for (Doc doc : docs.values()) {
+            docChars += doc.name.length() + doc.area.length() + doc.address.length();
+        }
+        // 按64位JVM开启压缩指针估算：每个gram约String 56字节、map节点32字节、倒排集合96字节，
+        // 每个倒排项约集合节点32字节、Long 16字节，每个文档约对象和3个String共200字节
+        long estimatedBytes = postings.size() * (56 + 32 + 96) + gramChars * 2
+                + postingCount * (32 + 16)
+                + docs.size() * (200 + 32) + docChars * 2;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("docs", docs.size());
+        stats.put("grams", postings.size());
+        stats.put("postings", postingCount);
+        stats.put("estimatedBytes", estimatedBytes);
+        return stats;
+    }
+
+    /**
+     * 单字的关键字取单字的倒排表，否则取所有bigram倒排表的交集，从最短的开始
+     */
+    private Set<Long> candidates(String query) {
+        Set<String> grams = query.length() == 1 ? Collections.singleton(query) : bigrams(query);
+        List<Set<Long>> lists = new ArrayList<>(grams.size());
+        for (String gram : grams) {
+            Set<Long> list = postings.get(gram);
+            if (list == null || list.isEmpty()) {
+                return Collections.emptySet();
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        Set<Long> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.retainAll(lists.get(i));
+        }
+        return result;
+    }
+
+    private void removePosting(String gram, Long id) {
+        Set<Long> list = postings.get(gram);
+        if (list != null) {
+            list.remove(id);
+            if (list.isEmpty()) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    /**
+     * 转小写并去掉空白字符
+     */
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Set<String> bigrams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * 索引中的文档，字段已经规范化，不可变
+     */
+    private static class Doc {
+        private final String name;
+        private final String area;
+        private final String address;
+        private final int score;
+
+        Doc(String name, String area, String address, int score) {
+            this.name = name;
+            this.area = area;
+            this.address = address;
+            this.score = score;
+        }
+
+        /**
+         * 每个字段单独切分单字和bigram，不跨字段
+         */
+        Set<String> grams() {
+            Set<String> grams = new HashSet<>();
+            for (String field : new String[]{name, area, address}) {
+                for (int i = 0; i < field.length(); i++) {
+                    grams.add(field.substring(i, i + 1));
+                }
+                grams.addAll(bigrams(field));
+            }
+            return grams;
+        }
+
+        /**
+         * @return 匹配程度，不匹配时返回0
+         */
+        int match(String query) {
+            if (name.equals(query)) {
+                return MATCH_NAME_EQUALS;
+            }
+            if (name.startsWith(query)) {
+                return MATCH_NAME_PREFIX;
+            }
+            if (name.contains(query)) {
+                return MATCH_NAME_CONTAINS;
+            }
+            if (area.contains(query)) {
+                return MATCH_AREA_CONTAINS;
+            }
+            if (address.contains(query)) {
+                return MATCH_ADDRESS_CONTAINS;
+            }
+            // 倒排表和文档不一致时（文档刚被更新）以文档为准
+            Set<String> grams = grams();
+            Set<String> queryGrams = query.length() == 1 ? Collections.singleton(query) : bigrams(query);
+            return grams.containsAll(queryGrams) ? MATCH_GRAMS : 0;
+        }
+    }
+}
@@ -11,14 +11,77 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
-    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:types";
+    // 商铺类型列表，不放在cache:shop:下面，按商铺前缀SCAN时不会扫到这个list
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type:list";
+    // 商铺类型目录的版本号，修改商铺类型后自增，各节点发现版本号变化后重新加载本地快照
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+    // 商铺类型变更的广播频道，消息内容为新的版本号
+    public static final String SHOP_TYPE_CHANGED_CHANNEL = "channel:shop-type:changed";
+    // 商铺逻辑过期时间，单位秒
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 20L;
 
+    // 本地一级缓存最大条目数
+    public static final int CACHE_LOCAL_MAX_SIZE = 1024;
+    // 本地一级缓存过期时间，单位毫秒，兜底各节点间失效通知丢失的情况
+    public static final Long CACHE_LOCAL_TTL = 5000L;
+    // 缓存失效广播频道，消息内容为被删除的key
+    public static final String CACHE_INVALIDATE_CHANNEL = "channel:cache:invalidate";
+    // 商铺新增或修改的广播频道，消息内容为发出广播的节点标识:商铺id
+    public static final String SHOP_CHANGED_CHANNEL = "channel:shop:changed";
+    // 商铺布隆过滤器期望的误判率
+    public static final double SHOP_BLOOM_FPP = 0.01;
+    // 热点key探测的滑动窗口时长和格子数，单位毫秒
+    public static final Long HOT_KEY_WINDOW = 10000L;
+    public static final int HOT_KEY_SLOTS = 10;
+    // 窗口内访问次数达到阈值升级为热点key，最多保留的热点key个数
+    public static final int HOT_KEY_THRESHOLD = 500;
+    public static final int HOT_KEY_TOP_K = 64;
+    // 热点key本地副本的过期时间，单位毫秒
+    public static final Long CACHE_HOT_TTL = 3000L;
+
+    // 缓存版本号的前缀，后面拼接完整的缓存key，每次删除缓存时自增；过期时间单位小时
+    public static final String CACHE_VERSION_KEY = "cache:version:";
+    public static final Long CACHE_VERSION_TTL = 24L;
+
+    // 缓存的用户信息，修改用户时删除；直接改数据库时最多5分钟后过期
+    public static final Long CACHE_USER_TTL = 5L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    // 缓存重建互斥锁的前缀，后面拼接完整的缓存key
+    public static final String LOCK_CACHE_KEY = "lock:";
+    // 缓存重建互斥锁的过期时间，单位秒，也是异步重建任务的租期
+    public static final Long LOCK_CACHE_TTL = 10L;
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    // 店铺的优惠券列表，缓存序列化好的JSON；列表中有秒杀库存，过期时间很短，单位秒
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:list:";
+    public static final Long CACHE_VOUCHER_LIST_TTL = 10L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    // 已下单的用户id集合，后面拼接优惠券id，和secondKill.lua一致
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 秒杀券的开始和结束时间，哈希，值为毫秒时间戳，秒杀的lua脚本用它校验秒杀时间
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_VOUCHER_BEGIN_FIELD = "begin";
+    public static final String SECKILL_VOUCHER_END_FIELD = "end";
+    // 库存分段数，1为不分段，和tb_seckill_voucher.segments一致
+    public static final String SECKILL_VOUCHER_SEGMENTS_FIELD = "segments";
+    // 分段库存，后面拼接{优惠券id:分段}，哈希，包含库存、开始时间和结束时间
+    public static final String SECKILL_SEGMENT_KEY = "seckill:segment:";
+    // 分段的已下单用户，后面拼接{优惠券id:分段}
+    public static final String SECKILL_SEGMENT_ORDER_KEY = "seckill:segment-order:";
+    // 秒杀券售罄和补充库存的广播频道，消息内容为+优惠券id:代数或-优惠券id:代数
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "channel:seckill:sold-out";
+    // 秒杀券补充库存的代数，每次补充库存时递增，过时的售罄标记被忽略
+    public static final String SECKILL_SOLD_OUT_GENERATION_KEY = "seckill:sold-out-gen:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    // 按类型的商铺GEO索引，后面拼接类型id，成员为商铺id
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    // 按类型的商铺排行，后面拼接排序字段和类型id，成员为商铺id，分数为排序字段的值
+    public static final String SHOP_TYPE_RANK_KEY = "shop:type:rank:";
+    // 排行和GEO索引全量构建完成的标记，不存在时预热阶段全量构建
+    public static final String SHOP_TYPE_RANK_READY_KEY = "shop:type:rank-ready";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    // 上一次重建这条数据花费的时间，单位毫秒，用于提前刷新时估算重建成本
+    private Long delta;
 }
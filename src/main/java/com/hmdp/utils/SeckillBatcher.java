@@ -0,0 +1,302 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀请求的批量准入，每个请求单独执行一次lua脚本时，连接池的连接数限制了吞吐
+ * 并发的秒杀请求先放进队列，合并线程取出第一个请求之后最多再等待一小段时间或凑够一批，
+ * 用secondKill.lua一次判断整批请求，再把每个请求的结果分别交给等待的请求线程
+ * 等待时间越长、批次越大，redis的调用次数越少，单个请求的延迟越高
+ * 请求线程最多等待一段时间，超时时还没有发出的请求从批次中撤回，由调用方单独执行；
+ * 已经发出的请求再等待一段时间，仍然没有结果时放弃等待，返回BUSY，之后批次中扣减成功的库存由合并线程退回
+ * @author CHAN
+ * @since 2022/4/28
+ */
+@Slf4j
+@Component
+public class SeckillBatcher {
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> BATCH_SCRIPT;
+
+    // 请求已经发出但等待结果超时，结果未知，扣减成功的库存会被退回，调用方应当提示稍后重试
+    public static final int BUSY = -1;
+
+    static {
+        BATCH_SCRIPT = new DefaultRedisScript<>();
+        BATCH_SCRIPT.setLocation(new ClassPathResource("secondKill.lua"));
+        BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean enabled;
+    // 一批最多的请求数
+    private final int maxSize;
+    // 取出第一个请求之后最多等待的时间，单位纳秒
+    private final long maxWaitNanos;
+    // 请求线程等待结果的最长时间，单位毫秒
+    private final long timeoutMillis;
+    private final BlockingQueue<Admission> queue;
+    // 没有开启时为null
+    private final ExecutorService workers;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    // 队列满了没有进入批量的请求数
+    private final LongAdder rejected = new LongAdder();
+    // 等待超时、从批次中撤回的请求数
+    private final LongAdder timedOut = new LongAdder();
+    // 发出之后等待超时、放弃等待的请求数
+    private final LongAdder abandoned = new LongAdder();
+
+    public SeckillBatcher(StringRedisTemplate stringRedisTemplate, CacheMetrics cacheMetrics,
+                          @Value("${hmdp.seckill.batch.enabled:true}") boolean enabled,
+                          @Value("${hmdp.seckill.batch.max-size:64}") int maxSize,
+                          @Value("${hmdp.seckill.batch.max-wait-micros:200}") long maxWaitMicros,
+                          @Value("${hmdp.seckill.batch.timeout-millis:100}") long timeoutMillis,
+                          @Value("${hmdp.seckill.batch.threads:4}") int threads,
+                          @Value("${hmdp.seckill.batch.queue-capacity:10000}") int queueCapacity) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        this.maxSize = Math.max(maxSize, 1);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.timeoutMillis = timeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (enabled) {
+            AtomicInteger seq = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "seckill-batcher-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < threads; i++) {
+                workers.submit(this::loop);
+            }
+        } else {
+            this.workers = null;
+        }
+        cacheMetrics.gauge("seckill.batches", batches::sum);
+        cacheMetrics.gauge("seckill.batchAdmitted", admitted::sum);
+        cacheMetrics.gauge("seckill.batchRejected", rejected::sum);
+        cacheMetrics.gauge("seckill.batchTimedOut", timedOut::sum);
+        cacheMetrics.gauge("seckill.batchAbandoned", abandoned::sum);
+        cacheMetrics.gauge("seckill.avgBatchSize", () -> batches.sum() == 0 ? 0 : (double) admitted.sum() / batches.sum());
+    }
+
+    /**
+     * 放进队列，等待所在批次执行完
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @return 和secondKill.lua的返回值一致；没有开启、队列满了或者超时还没有发出时返回null，由调用方单独执行；
+     *         发出之后仍然等待超时返回BUSY
+     */
+    public Integer admit(Long voucherId, Long userId) {
+        if (!enabled) {
+            return null;
+        }
+        Admission admission = new Admission(voucherId, userId);
+        if (!queue.offer(admission)) {
+            rejected.increment();
+            return null;
+        }
+        try {
+            try {
+                return admission.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (admission.withdraw()) {
+                    // 还没有发出，撤回之后不会再执行，由调用方单独执行
+                    timedOut.increment();
+                    return null;
+                }
+            }
+            // 已经在执行中的批次里，再等待一段时间
+            try {
+                return admission.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (admission.abandon()) {
+                    // redis迟迟没有返回，不再等待，合并线程拿到结果后退回扣减的库存
+                    abandoned.increment();
+                    return BUSY;
+                }
+                // 结果刚好已经交付
+                return admission.result.get();
+            }
+        } catch (InterruptedException e) {
+            // 请求已经在批次中，结果可能已经生效，不能当作没有执行
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待秒杀结果被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("批量执行秒杀脚本失败", e.getCause());
+        }
+    }
+
+    private void loop() {
+        List<Admission> batch = new ArrayList<>(maxSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxSize) {
+                    queue.drainTo(batch, maxSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxSize || remaining <= 0) {
+                        break;
+                    }
+                    Admission next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                execute(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (Admission admission : batch) {
+                    // 执行之前被中断的请求
+                    admission.result.completeExceptionally(new CancellationException("秒杀批量准入已停止"));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void execute(List<Admission> batch) {
+        // 去掉等待超时已经撤回的请求，剩下的请求不能再撤回
+        batch.removeIf(admission -> !admission.send());
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(batch.size() * 2 + 1);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        for (Admission admission : batch) {
+            args.add(admission.voucherId.toString());
+            args.add(admission.userId.toString());
+        }
+        try {
+            List<?> results = stringRedisTemplate.execute(BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+            batches.increment();
+            admitted.add(batch.size());
+            List<Admission> rollback = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                Admission admission = batch.get(i);
+                int result = ((Number) results.get(i)).intValue();
+                if (admission.deliver()) {
+                    admission.result.complete(result);
+                } else if (result == 0) {
+                    // 请求线程已经放弃等待，不会创建订单，退回库存和一人一单的记录
+                    rollback.add(admission);
+                }
+            }
+            if (!rollback.isEmpty()) {
+                rollback(rollback);
+            }
+        } catch (Exception e) {
+            log.error("批量执行秒杀脚本失败，批次大小: {}", batch.size(), e);
+            for (Admission admission : batch) {
+                admission.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 退回已经放弃等待的请求扣减的库存，删除一人一单的记录
+     */
+    private void rollback(List<Admission> admissions) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Admission admission : admissions) {
+                    conn.incrBy(SECKILL_STOCK_KEY + admission.voucherId, 1);
+                    conn.sRem(SECKILL_ORDER_KEY + admission.voucherId, admission.userId.toString());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("退回放弃等待的秒杀请求失败，数量: {}", admissions.size(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        Admission admission;
+        while ((admission = queue.poll()) != null) {
+            admission.result.completeExceptionally(new CancellationException("秒杀批量准入已停止"));
+        }
+    }
+
+    /**
+     * 等待准入的请求
+     */
+    private static class Admission {
+        private static final int WAITING = 0;
+        private static final int SENT = 1;
+        private static final int WITHDRAWN = 2;
+        private static final int DELIVERED = 3;
+        private static final int ABANDONED = 4;
+
+        private final Long voucherId;
+        private final Long userId;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+        // 发出和撤回只有一个能成功，发出之后交付和放弃只有一个能成功
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Admission(Long voucherId, Long userId) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+        }
+
+        /**
+         * 合并线程发出之前调用
+         * @return 已经被请求线程撤回时返回false
+         */
+        boolean send() {
+            return state.compareAndSet(WAITING, SENT);
+        }
+
+        /**
+         * 请求线程等待超时时调用
+         * @return 已经发出时返回false
+         */
+        boolean withdraw() {
+            return state.compareAndSet(WAITING, WITHDRAWN);
+        }
+
+        /**
+         * 合并线程拿到结果之后调用
+         * @return 请求线程已经放弃等待时返回false
+         */
+        boolean deliver() {
+            return state.compareAndSet(SENT, DELIVERED);
+        }
+
+        /**
+         * 请求线程发出之后等待超时时调用
+         * @return 结果已经交付时返回false
+         */
+        boolean abandon() {
+            return state.compareAndSet(SENT, ABANDONED);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import com.hmdp.entity.SeckillVoucher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENT_ORDER_KEY;
+
+/**
+ * 分段库存，大促时一个秒杀券的所有请求都落在同一个库存key和订单key上，集群中只有一个节点在干活
+ * 把库存平均分到多个分段，每个分段一个哈希（库存、开始时间、结束时间）和一个已下单用户集合，
+ * 每次下单只读写用户所属分段的库存和一个较小的集合，减少单个key上的竞争和大集合的扩容
+ * 每个分段的哈希和集合用{优惠券id:分段}作为hash tag，集群模式下不同分段分布在不同的槽，每次调用只访问一个分段
+ * 1.用户按id固定分到一个分段，一人一单只在这个分段中判断，所以跨分段也不会重复下单
+ * 2.所属分段没有库存时，先在所属分段占住一人一单，再依次单独调用后面的分段借库存，都借不到或者出错时释放占位
+ * @author CHAN
+ * @since 2022/4/28
+ */
+@Component
+public class SegmentedStock {
+
+    // 下单成功
+    public static final int OK = 0;
+    // 库存不足
+    public static final int SOLD_OUT = 1;
+    // 重复下单
+    public static final int DUPLICATE = 2;
+    // 分段不存在
+    public static final int MISSING = 5;
+    // 所属分段没有库存，已经占住一人一单，需要向其他分段借，只在内部使用
+    private static final int BORROW = 7;
+
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT;
+
+    static {
+        SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckillSegment.lua"));
+        SEGMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 新建秒杀券时的库存分段数，1表示不分段
+    @Value("${hmdp.seckill.segments:1}")
+    private int segments;
+
+    public SegmentedStock(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * @return 新建秒杀券时的库存分段数，1表示不分段
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * 把秒杀券的库存平均分到各个分段，除不尽的部分分给前面的分段
+     * @param seckillVoucher 秒杀券，分段数大于1
+     */
+    public void init(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int n = seckillVoucher.getSegments();
+        int stock = seckillVoucher.getStock();
+        String begin = String.valueOf(LocalDateTimeUtil.toEpochMilli(seckillVoucher.getBeginTime()));
+        String end = String.valueOf(LocalDateTimeUtil.toEpochMilli(seckillVoucher.getEndTime()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                Map<String, String> segment = new HashMap<>(4);
+                segment.put("stock", String.valueOf(stock / n + (i < stock % n ? 1 : 0)));
+                segment.put("begin", begin);
+                segment.put("end", end);
+                conn.hMSet(segmentKey(voucherId, i), segment);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把redis中丢失的分段按数据库中的剩余库存补回来，已经存在的分段不变
+     * 库存用HSETNX写入，多个节点同时补写时只有第一个生效
+     * @param seckillVoucher 秒杀券，库存为数据库中的剩余库存，分段数大于1
+     */
+    public void restore(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int n = seckillVoucher.getSegments();
+        int stock = seckillVoucher.getStock();
+        String begin = String.valueOf(LocalDateTimeUtil.toEpochMilli(seckillVoucher.getBeginTime()));
+        String end = String.valueOf(LocalDateTimeUtil.toEpochMilli(seckillVoucher.getEndTime()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                String key = segmentKey(voucherId, i);
+                conn.hSetNX(key, "stock", String.valueOf(stock / n + (i < stock % n ? 1 : 0)));
+                conn.hSet(key, "begin", begin);
+                conn.hSet(key, "end", end);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 扣减库存，先在用户所属的分段中扣减，没有库存时再逐个向其他分段借，每次调用只访问一个分段
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @param n 分段数
+     * @return 0下单成功，1库存不足，2重复下单，3未开始，4已结束，5分段不存在，和secondKill.lua一致
+     */
+    public int acquire(Long voucherId, Long userId, int n) {
+        int home = segmentOf(userId, n);
+        long now = System.currentTimeMillis();
+        int result = execute(voucherId, home, userId, now, true);
+        if (result != BORROW) {
+            return result;
+        }
+        boolean borrowed = false;
+        try {
+            // 从下一个分段开始借，不同分段的用户借的顺序错开；不存在的分段跳过
+            for (int i = 1; i < n && !borrowed; i++) {
+                borrowed = execute(voucherId, (home + i) % n, userId, now, false) == OK;
+            }
+        } finally {
+            if (!borrowed) {
+                // 都借不到或者借的过程中出错，释放一人一单的占位
+                stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+            }
+        }
+        return borrowed ? OK : SOLD_OUT;
+    }
+
+    /**
+     * 补充库存，平均加到各个分段
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @param n 分段数
+     */
+    public void add(Long voucherId, int count, int n) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < n; i++) {
+                int delta = count / n + (i < count % n ? 1 : 0);
+                if (delta > 0) {
+                    conn.hIncrBy(segmentKey(voucherId, i), "stock", delta);
+                }
+            }
+            return null;
+        });
+    }
+
+    private int execute(Long voucherId, int segment, Long userId, long now, boolean home) {
+        Long result = stringRedisTemplate.execute(
+                SEGMENT_SCRIPT,
+                Arrays.asList(segmentKey(voucherId, segment), orderKey(voucherId, segment)),
+                userId.toString(),
+                String.valueOf(now),
+                home ? "1" : "0"
+        );
+        assert result != null;
+        return result.intValue();
+    }
+
+    /**
+     * 用户固定分到一个分段
+     */
+    private static int segmentOf(Long userId, int n) {
+        return Math.floorMod(Long.hashCode(userId), n);
+    }
+
+    /**
+     * 分段的哈希，和这个分段的订单集合在同一个槽，不同分段在不同的槽
+     */
+    public static String segmentKey(Long voucherId, int segment) {
+        return SECKILL_SEGMENT_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段的已下单用户集合
+     */
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_SEGMENT_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * JVM内的请求合并，同一个key同一时刻只有一个线程真正执行，其他线程等待同一个结果
+ * 缓存未命中时，同一节点上对同一个key的并发请求只会有一个去竞争分布式锁和查询数据库，
+ * 其他线程阻塞在future上，结果一出来就被唤醒，不需要休眠轮询
+ * @author CHAN
+ * @since 2022/4/22
+ */
+public class SingleFlight {
+
+    // 正在执行中的调用，key -> 执行结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行并返回结果，如果同一个key已经有线程在执行，则等待它的结果
+     * @param key 键
+     * @param supplier 真正的执行逻辑
+     * @param <T> 结果类型
+     * @return 结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> supplier) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 已经有线程在执行，等待结果
+            try {
+                return (T) inFlight.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            T result = supplier.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 执行结束就移除，之后的请求直接读缓存
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * @return 当前正在执行中的key数量
+     */
+    public int inFlightCount() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀券售罄标记，每个节点在本地保存，售罄之后的请求不需要查询数据库和执行lua脚本，直接返回库存不足
+ * 1.lua脚本返回库存不足时标记，并广播给所有节点
+ * 2.补充库存之后清除，同样广播给所有节点
+ * 3.标记有有效期，漏掉了清除广播的节点过期之后重新走一次lua脚本，库存仍然不足会再次标记
+ * 4.每次补充库存时递增redis中的代数，标记和清除都带着代数：请求执行lua脚本之前记下当前代数，
+ *   补充库存之前就判断为库存不足的请求，在清除之后才标记时代数已经过时，标记被忽略
+ * @author CHAN
+ * @since 2022/4/28
+ */
+@Slf4j
+@Component
+public class SoldOutFlags {
+
+    private static final String MARK = "+";
+    private static final String CLEAR = "-";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // 优惠券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    // 优惠券id -> 本节点知道的最新的补充库存代数
+    private final Map<Long, Long> generations = new ConcurrentHashMap<>();
+    // 被售罄标记直接拒绝的请求数
+    private final LongAdder rejected = new LongAdder();
+
+    // 售罄标记的有效期，单位毫秒
+    @Value("${hmdp.seckill.sold-out-ttl:30000}")
+    private long ttlMillis;
+
+    public SoldOutFlags(StringRedisTemplate stringRedisTemplate, CacheMetrics cacheMetrics) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        cacheMetrics.gauge("seckill.soldOut", soldOut::size);
+        cacheMetrics.gauge("seckill.soldOutRejected", rejected::sum);
+    }
+
+    /**
+     * 只读本地内存，不做任何I/O
+     * @param voucherId 优惠券id
+     * @return 是否已经售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireTime = soldOut.get(voucherId);
+        if (expireTime == null) {
+            return false;
+        }
+        if (expireTime < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireTime);
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    /**
+     * 只读本地内存，执行lua脚本之前调用，标记售罄时传回来
+     * @param voucherId 优惠券id
+     * @return 本节点知道的最新的补充库存代数
+     */
+    public long generation(Long voucherId) {
+        return generations.getOrDefault(voucherId, 0L);
+    }
+
+    /**
+     * 标记售罄，本节点第一次标记时广播给其他节点；执行lua脚本之后补充过库存时忽略
+     * @param voucherId 优惠券id
+     * @param generation 执行lua脚本之前的代数
+     */
+    public void markSoldOut(Long voucherId, long generation) {
+        if (mark(voucherId, generation)) {
+            publish(MARK + voucherId + ":" + generation);
+        }
+    }
+
+    /**
+     * 清除售罄标记，补充库存之后调用，递增代数并广播给所有节点
+     * @param voucherId 优惠券id
+     */
+    public void clearSoldOut(Long voucherId) {
+        Long generation = stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_SOLD_OUT_GENERATION_KEY + voucherId);
+        assert generation != null;
+        clear(voucherId, generation);
+        publish(CLEAR + voucherId + ":" + generation);
+    }
+
+    /**
+     * 收到其他节点的广播，只修改本地标记，不再广播
+     * @param message +优惠券id:代数表示售罄，-优惠券id:代数表示清除
+     */
+    public void onMessage(String message) {
+        int at = message.indexOf(':');
+        Long voucherId = Long.valueOf(message.substring(1, at));
+        long generation = Long.parseLong(message.substring(at + 1));
+        if (message.startsWith(MARK)) {
+            mark(voucherId, generation);
+        } else {
+            clear(voucherId, generation);
+        }
+    }
+
+    /**
+     * @return 是否是新的标记
+     */
+    private synchronized boolean mark(Long voucherId, long generation) {
+        long current = generation(voucherId);
+        if (generation < current) {
+            // 标记之前已经补充过库存
+            return false;
+        }
+        if (generation > current) {
+            // 漏掉了清除广播或者刚启动
+            generations.put(voucherId, generation);
+        }
+        return soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis) == null;
+    }
+
+    private synchronized void clear(Long voucherId, long generation) {
+        if (generation >= generation(voucherId)) {
+            generations.put(voucherId, generation);
+            soldOut.remove(voucherId);
+        }
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 其他节点收不到广播时最多多执行几次lua脚本，清除广播丢失时靠标记的有效期兜底
+            log.error("广播售罄标记失败: {}", message, e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 过期时间随机抖动，批量写入的key不会在同一时刻过期，避免重建和数据库的压力集中在一起
+ * 抖动后的过期时间 = 过期时间 * (1 + 抖动比例)，抖动比例按分布随机生成，范围是[-ratio, ratio]
+ * @author CHAN
+ * @since 2022/4/26
+ */
+public class TtlJitter {
+
+    /**
+     * 抖动比例的分布
+     */
+    public enum Distribution {
+        // 在[-ratio, ratio]中均匀分布，过期时间分散得最开
+        UNIFORM,
+        // 均值为0、标准差为ratio/2的正态分布，截断到[-ratio, ratio]，大部分key接近原来的过期时间
+        GAUSSIAN,
+        // 只往后延长，在[0, ratio]中均匀分布，过期时间不会比设置的更短
+        UNIFORM_EXTEND
+    }
+
+    private final Distribution distribution;
+    private final double ratio;
+
+    /**
+     * @param distribution 分布
+     * @param ratio 最大抖动比例，0到1之间
+     */
+    public TtlJitter(Distribution distribution, double ratio) {
+        if (ratio < 0 || ratio >= 1) {
+            throw new IllegalArgumentException("抖动比例必须在[0, 1)之间: " + ratio);
+        }
+        this.distribution = distribution;
+        this.ratio = ratio;
+    }
+
+    /**
+     * @param millis 原来的过期时间，单位毫秒
+     * @return 抖动后的过期时间，单位毫秒，至少为1
+     */
+    public long apply(long millis) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double offset;
+        switch (distribution) {
+            case GAUSSIAN:
+                offset = Math.max(-ratio, Math.min(ratio, random.nextGaussian() * ratio / 2));
+                break;
+            case UNIFORM_EXTEND:
+                offset = random.nextDouble() * ratio;
+                break;
+            case UNIFORM:
+            default:
+                offset = (random.nextDouble() * 2 - 1) * ratio;
+                break;
+        }
+        return Math.max(1, Math.round(millis * (1 + offset)));
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+}
@@ -0,0 +1,9 @@
+-- 缓存的key
+local key = KEYS[1];
+-- 清理之前读到的值
+local value = ARGV[1];
+-- 读取之后值被重建或修改过，说明已经不是要清理的数据，不能删除
+if (redis.call('get', key) == value) then
+    return redis.call('del', key);
+end
+return 0;
@@ -0,0 +1,21 @@
+-- 缓存的key
+local key = KEYS[1];
+-- 缓存对应的版本号key，每次删除缓存时自增
+local versionKey = KEYS[2];
+-- 要写入的值
+local value = ARGV[1];
+-- 查询数据库之前读到的版本号
+local version = ARGV[2];
+-- 过期时间，单位毫秒，0表示不设置过期时间
+local ttl = tonumber(ARGV[3]);
+-- 版本号变了，说明查询数据库期间数据被修改过，查到的可能是旧数据，不能写入
+local current = redis.call('get', versionKey);
+if ((current or '0') ~= version) then
+    return 0;
+end
+if (ttl > 0) then
+    redis.call('set', key, value, 'px', ttl);
+else
+    redis.call('set', key, value);
+end
+return 1;
@@ -0,0 +1,7 @@
+--- 整体替换一个列表，删除和写入在同一个脚本中原子完成，其他节点不会读到空列表后重复写入
+--- KEYS[1]为列表的key，ARGV为新的全部元素
+redis.call('del', KEYS[1]);
+if (#ARGV > 0) then
+    redis.call('rpush', KEYS[1], unpack(ARGV));
+end
+return #ARGV;
\ No newline at end of file
@@ -0,0 +1,49 @@
+--- 分段库存的秒杀脚本，一次只操作一个分段，每个分段的两个key带有这个分段自己的hash tag，不同分段分布在不同的槽
+--- 参数列表
+--- 分段key：哈希，库存、开始时间和结束时间
+local segmentKey = KEYS[1];
+--- 分段的订单key：用户id被分到这个分段的已下单用户
+local orderKey = KEYS[2];
+--- 用户id
+local userId = ARGV[1];
+--- 当前时间，毫秒时间戳
+local now = tonumber(ARGV[2]);
+--- 1表示这是用户所属的分段，0表示从其他分段借库存
+local home = ARGV[3] == '1';
+--- 脚本业务
+local segment = redis.call('hmget', segmentKey, 'stock', 'begin', 'end');
+if (not segment[1] or not segment[2] or not segment[3]) then
+    --- 分段不存在，返回5
+    return 5;
+end
+local stock = tonumber(segment[1]);
+if (not home) then
+    --- 借库存只扣减库存，时间和一人一单已经在用户所属的分段中判断过
+    if (stock <= 0) then
+        return 1;
+    end
+    redis.call('hincrby', segmentKey, 'stock', -1);
+    return 0;
+end
+if (now < tonumber(segment[2])) then
+    --- 秒杀未开始，返回3
+    return 3;
+end
+if (now > tonumber(segment[3])) then
+    --- 秒杀已结束，返回4
+    return 4;
+end
+--- 判断用户是否下过单
+if (redis.call('sismember', orderKey, userId) == 1) then
+    --- 存在，说明是重复下单，返回2
+    return 2;
+end
+--- 保存下单的用户id，本分段没有库存时也先占住，再去其他分段借，借不到时由调用方释放
+redis.call('sadd', orderKey, userId);
+if (stock <= 0) then
+    --- 本分段库存不足，返回7
+    return 7;
+end
+--- 扣减库存
+redis.call('hincrby', segmentKey, 'stock', -1);
+return 0;
\ No newline at end of file
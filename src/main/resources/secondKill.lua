@@ -1,27 +1,52 @@
+--- 秒杀脚本，一次调用依次判断一个或多个请求，整批原子执行
+--- 单独执行和批量准入都用这个脚本，单独执行时只传一个请求
 --- 参数列表
---- 优惠券id
-local voucherId = ARGV[1];
---- 用户id
-local userId = ARGV[2];
---- 数据key
---- 库存key：id为voucherId的优惠券库存
-local stockKey = "seckill:stock:"..voucherId;
---- 订单key：id为voucherId的优惠券被哪些userId下了订单
-local orderKey = "seckill:order:"..voucherId;
---- 脚本业务
---- 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    --- 库存不足，返回1
-    return 1;
+--- 当前时间，毫秒时间戳
+local now = tonumber(ARGV[1]);
+--- 之后每两个参数是一个请求：优惠券id、用户id
+--- 返回每个请求的结果：0下单成功，1库存不足，2重复下单，3未开始，4已结束，5秒杀券信息不在redis中，6库存不在redis中
+local results = {};
+for i = 2, #ARGV, 2 do
+    local voucherId = ARGV[i];
+    local userId = ARGV[i + 1];
+    --- 数据key
+    --- 库存key：id为voucherId的优惠券库存
+    local stockKey = "seckill:stock:"..voucherId;
+    --- 订单key：id为voucherId的优惠券被哪些userId下了订单
+    local orderKey = "seckill:order:"..voucherId;
+    --- 秒杀券信息key：开始时间和结束时间，毫秒时间戳
+    local voucherKey = "seckill:voucher:"..voucherId;
+    local result;
+    --- 判断秒杀时间
+    local window = redis.call('hmget', voucherKey, 'begin', 'end');
+    if (not window[1] or not window[2]) then
+        --- 秒杀券信息不在redis中，返回5，由调用方写入后重试
+        result = 5;
+    elseif (now < tonumber(window[1])) then
+        --- 秒杀未开始，返回3
+        result = 3;
+    elseif (now > tonumber(window[2])) then
+        --- 秒杀已结束，返回4
+        result = 4;
+    else
+        --- 判断库存是否充足
+        local stock = tonumber(redis.call('get', stockKey));
+        if (stock == nil) then
+            --- 库存不在redis中，返回6，不能当作售罄
+            result = 6;
+        elseif (stock <= 0) then
+            --- 库存不足，返回1
+            result = 1;
+        elseif (redis.call('sismember', orderKey, userId) == 1) then
+            --- 存在，说明是重复下单，返回2
+            result = 2;
+        else
+            --- 符合下单条件，扣减库存，保存下单的用户id
+            redis.call('incrby', stockKey, -1);
+            redis.call('sadd', orderKey, userId);
+            result = 0;
+        end
+    end
+    results[#results + 1] = result;
 end
---- 判断用户是否下过单
-if (redis.call('sismember', orderKey, userId) == 1) then
-    --- 存在，说明是重复下单，返回2
-    return 2;
-end
---- 符合下单条件
---- 扣减库存
-redis.call('incrby', stockKey, -1);
---- 保存下单的用户id
-redis.call('sadd', orderKey, userId)
-return 0;
\ No newline at end of file
+return results;
\ No newline at end of file
@@ -1,16 +1,41 @@
 package com.hmdp;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.GeoGridIndex;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.JsonResponseWriter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SegmentedStock;
 import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -30,6 +55,18 @@ public class HmDianPingApplicationTests {
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private ObjectMapper objectMapper;
+
+    @Resource
+    private JsonResponseWriter jsonResponseWriter;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
     private final ExecutorService POOL = Executors.newFixedThreadPool(500);
 
     /**
@@ -81,4 +118,171 @@ public class HmDianPingApplicationTests {
             }
         }
     }
+
+    /**
+     * 对比json和二进制两种缓存编码方式的数据大小和编解码耗时
+     */
+    @Test
+    public void testCacheCodec() {
+        Shop shop = shopService.getById(1L);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(20L));
+        for (CacheCodec codec : new CacheCodec[]{new JsonCacheCodec(), new BinaryCacheCodec()}) {
+            byte[] bytes = codec.encodeLogical(redisData);
+            // 预热
+            for (int i = 0; i < 10000; i++) {
+                codec.decodeLogical(codec.encodeLogical(redisData), Shop.class);
+            }
+            int times = 100000;
+            long begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                codec.encodeLogical(redisData);
+            }
+            long encodeNanos = (System.nanoTime() - begin) / times;
+            begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                codec.decodeLogical(bytes, Shop.class);
+            }
+            long decodeNanos = (System.nanoTime() - begin) / times;
+            System.out.println(codec.name() + ": size = " + bytes.length
+                    + " bytes, encode = " + encodeNanos + " ns, decode = " + decodeNanos + " ns");
+        }
+    }
+
+    /**
+     * 对比缓存命中时两种响应方式的耗时和内存分配：
+     * 1.原来的方式：解码redis中的数据得到Shop，包装成Result后由Jackson序列化
+     * 2.直接写入的方式：复用本地缓存对象序列化好的JSON，和Result的前后缀依次写出
+     */
+    @Test
+    public void testJsonPassThrough() throws IOException {
+        Shop shop = shopService.getById(1L);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(20L));
+        CacheCodec codec = new BinaryCacheCodec();
+        byte[] cached = codec.encodeLogical(redisData);
+        String key = RedisConstants.CACHE_SHOP_KEY + 1L;
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int times = 100000;
+        for (int round = 0; round < 2; round++) {
+            // 第一轮用来预热
+            long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            long begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                Shop decoded = (Shop) codec.decodeLogical(cached, Shop.class).getData();
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                response.getOutputStream().write(objectMapper.writeValueAsBytes(Result.ok(decoded)));
+            }
+            long decodeNanos = (System.nanoTime() - begin) / times;
+            long decodeBytes = (threadMXBean.getThreadAllocatedBytes(threadId) - allocated) / times;
+            allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                jsonResponseWriter.writeOk(response, jsonResponseWriter.toJson(key, shop));
+            }
+            long passNanos = (System.nanoTime() - begin) / times;
+            long passBytes = (threadMXBean.getThreadAllocatedBytes(threadId) - allocated) / times;
+            if (round > 0) {
+                System.out.println("decode + serialize: " + decodeNanos + " ns, " + decodeBytes + " bytes/op");
+                System.out.println("pass-through: " + passNanos + " ns, " + passBytes + " bytes/op");
+            }
+        }
+    }
+
+    /**
+     * 对比本地网格索引和redis GEORADIUS查询附近商铺的耗时，需要先构建redis中按类型的GEO索引
+     * redis只返回id和距离，还要再查一次商铺详情；本地索引的结果直接带着商铺数据
+     */
+    @Test
+    public void testGeoGridIndex() {
+        GeoGridIndex<Shop> index = new GeoGridIndex<>(0.01);
+        for (Shop shop : shopService.list()) {
+            if (shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            index.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY(), shop);
+        }
+        double x = 120.149192;
+        double y = 30.316078;
+        double radius = 5000;
+        int k = 10;
+        String key = RedisConstants.SHOP_GEO_KEY + 1L;
+        RedisGeoCommands.GeoRadiusCommandArgs args = RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs()
+                .includeDistance().sortAscending().limit(k);
+        Circle circle = new Circle(new Point(x, y), new Distance(radius, RedisGeoCommands.DistanceUnit.METERS));
+        List<GeoGridIndex.Hit<Shop>> hits = index.nearest(1L, x, y, radius, k);
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(key, circle, args);
+        log.info("本地索引: {}", hits.stream().map(h -> h.getId() + "=" + Math.round(h.getDistance())).toArray());
+        log.info("GEORADIUS: {}", results == null ? null : results.getContent().stream()
+                .map(r -> r.getContent().getName() + "=" + Math.round(r.getDistance().getValue())).toArray());
+        int times = 10000;
+        for (int round = 0; round < 2; round++) {
+            // 第一轮用来预热
+            long begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                index.nearest(1L, x, y, radius, k);
+            }
+            long localNanos = (System.nanoTime() - begin) / times;
+            begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                stringRedisTemplate.opsForGeo().radius(key, circle, args);
+            }
+            long redisNanos = (System.nanoTime() - begin) / times;
+            if (round > 0) {
+                System.out.println("grid index: " + localNanos + " ns/op, " + index.stats());
+                System.out.println("GEORADIUS: " + redisNanos + " ns/op");
+            }
+        }
+    }
+
+    /**
+     * 对比不同库存分段数下秒杀扣减库存的吞吐，同时检查不超卖、不重复下单
+     * 每个分段在自己的槽，集群模式下分段分布到不同节点，吞吐随分段数增长；单机redis上只能看到单个key竞争的减少
+     */
+    @Test
+    public void testSegmentedStock() throws InterruptedException {
+        int stock = 10000;
+        int users = 20000;
+        for (int segments : new int[]{1, 4, 8}) {
+            // 用不会和真实数据冲突的优惠券id
+            long voucherId = Long.MAX_VALUE - segments;
+            SeckillVoucher voucher = new SeckillVoucher()
+                    .setVoucherId(voucherId)
+                    .setStock(stock)
+                    .setSegments(segments)
+                    .setBeginTime(LocalDateTime.now().minusMinutes(1))
+                    .setEndTime(LocalDateTime.now().plusMinutes(10));
+            segmentedStock.init(voucher);
+            AtomicInteger ok = new AtomicInteger();
+            AtomicInteger duplicate = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(users * 2);
+            long begin = System.nanoTime();
+            for (int i = 0; i < users * 2; i++) {
+                // 每个用户请求两次，第二次只能是重复下单或库存不足
+                long userId = i % users + 1;
+                POOL.submit(() -> {
+                    int result = segmentedStock.acquire(voucherId, userId, segments);
+                    if (result == SegmentedStock.OK) {
+                        ok.incrementAndGet();
+                    } else if (result == SegmentedStock.DUPLICATE) {
+                        duplicate.incrementAndGet();
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            System.out.println("segments: " + segments + ", " + (users * 2 * 1000L / Math.max(millis, 1))
+                    + " req/s, sold: " + ok.get() + ", duplicate: " + duplicate.get());
+            Assert.assertEquals(stock, ok.get());
+            for (int i = 0; i < segments; i++) {
+                stringRedisTemplate.delete(SegmentedStock.segmentKey(voucherId, i));
+                stringRedisTemplate.delete(SegmentedStock.orderKey(voucherId, i));
+            }
+        }
+    }
 }
@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+/**
+ * 两种编码方式的往返测试，不需要redis
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class CacheCodecTest {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2022, 4, 23, 12, 30, 15);
+
+    private final BinaryCacheCodec binary = new BinaryCacheCodec();
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    @Test
+    public void binaryRoundTripsShop() {
+        Shop shop = shop();
+        byte[] bytes = binary.encode(shop);
+        Assert.assertTrue(binary.canDecode(bytes));
+        Assert.assertFalse(json.canDecode(bytes));
+        Assert.assertEquals(shop, binary.decode(bytes, Shop.class));
+    }
+
+    @Test
+    public void binaryKeepsNullFields() {
+        Shop shop = new Shop();
+        shop.setId(7L);
+        shop.setName("只有名称");
+        Assert.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+    }
+
+    @Test
+    public void binaryRoundTripsShopTypeAndUser() {
+        ShopType shopType = new ShopType();
+        shopType.setId(3L);
+        shopType.setName("美食");
+        shopType.setIcon("/types/ms.png");
+        shopType.setSort(1);
+        shopType.setCreateTime(TIME);
+        shopType.setUpdateTime(TIME.plusDays(1));
+        Assert.assertEquals(shopType, binary.decode(binary.encode(shopType), ShopType.class));
+
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("");
+        Assert.assertEquals(user, binary.decode(binary.encode(user), UserDTO.class));
+    }
+
+    @Test
+    public void binaryFallsBackToJsonForOtherTypes() {
+        Voucher voucher = new Voucher();
+        voucher.setId(2L);
+        voucher.setTitle("50元代金券");
+        voucher.setPayValue(4750L);
+        byte[] bytes = binary.encode(voucher);
+        // 没有专门编码方式的类型写json，读取时由json编码解析
+        Assert.assertFalse(binary.canDecode(bytes));
+        Assert.assertTrue(json.canDecode(bytes));
+        Voucher decoded = json.decode(bytes, Voucher.class);
+        Assert.assertEquals(voucher.getId(), decoded.getId());
+        Assert.assertEquals(voucher.getTitle(), decoded.getTitle());
+        Assert.assertEquals(voucher.getPayValue(), decoded.getPayValue());
+    }
+
+    @Test
+    public void binaryRoundTripsLogicalData() {
+        RedisData redisData = logical(shop());
+        byte[] bytes = binary.encodeLogical(redisData);
+        Assert.assertEquals(TIME, binary.readExpireTime(bytes));
+        RedisData decoded = binary.decodeLogical(bytes, Shop.class);
+        Assert.assertEquals(TIME, decoded.getExpireTime());
+        Assert.assertEquals(Long.valueOf(35), decoded.getDelta());
+        Assert.assertEquals(redisData.getData(), decoded.getData());
+        // 普通缓存值没有逻辑过期时间
+        Assert.assertNull(binary.readExpireTime(binary.encode(shop())));
+    }
+
+    @Test
+    public void binaryRoundTripsLogicalJsonData() {
+        Voucher voucher = new Voucher();
+        voucher.setId(5L);
+        voucher.setTitle("100元代金券");
+        byte[] bytes = binary.encodeLogical(logical(voucher));
+        Assert.assertTrue(binary.canDecode(bytes));
+        RedisData decoded = binary.decodeLogical(bytes, Voucher.class);
+        Assert.assertEquals(TIME, decoded.getExpireTime());
+        Assert.assertEquals("100元代金券", ((Voucher) decoded.getData()).getTitle());
+    }
+
+    @Test
+    public void jsonRoundTripsShop() {
+        Shop shop = shop();
+        byte[] bytes = json.encode(shop);
+        Assert.assertTrue(json.canDecode(bytes));
+        Assert.assertFalse(binary.canDecode(bytes));
+        Assert.assertEquals(shop, json.decode(bytes, Shop.class));
+    }
+
+    @Test
+    public void jsonRoundTripsLogicalData() {
+        RedisData redisData = logical(shop());
+        byte[] bytes = json.encodeLogical(redisData);
+        Assert.assertEquals(TIME, json.readExpireTime(bytes));
+        RedisData decoded = json.decodeLogical(bytes, Shop.class);
+        Assert.assertEquals(TIME, decoded.getExpireTime());
+        Assert.assertEquals(redisData.getData(), decoded.getData());
+        Assert.assertNull(json.readExpireTime(json.encode(shop())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryRejectsOtherFormats() {
+        binary.decode(json.encode(shop()), Shop.class);
+    }
+
+    private static RedisData logical(Object data) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(TIME);
+        redisData.setDelta(35L);
+        redisData.setData(data);
+        return redisData;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/a.jpg,https://qcloud.dpfile.com/pc/b.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(TIME);
+        shop.setUpdateTime(TIME.plusHours(3));
+        return shop;
+    }
+}
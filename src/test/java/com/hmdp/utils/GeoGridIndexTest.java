@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * 和逐个计算距离的结果对比
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class GeoGridIndexTest {
+
+    private static final double CENTER_X = 120.15;
+    private static final double CENTER_Y = 30.30;
+
+    private final GeoGridIndex<Integer> index = new GeoGridIndex<>(0.01);
+    private final List<double[]> shops = new ArrayList<>();
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        fill(2000, 42);
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            double x = CENTER_X + (random.nextDouble() - 0.5) * 0.2;
+            double y = CENTER_Y + (random.nextDouble() - 0.5) * 0.2;
+            double radius = 500 + random.nextInt(5000);
+            int k = 1 + random.nextInt(20);
+            List<Long> expected = bruteForce(1L, x, y, radius).stream().limit(k).collect(Collectors.toList());
+            Assert.assertEquals(expected, ids(index.nearest(1L, x, y, radius, k)));
+        }
+    }
+
+    @Test
+    public void withinMatchesBruteForce() {
+        fill(2000, 43);
+        Random random = new Random(8);
+        for (int i = 0; i < 200; i++) {
+            double x = CENTER_X + (random.nextDouble() - 0.5) * 0.2;
+            double y = CENTER_Y + (random.nextDouble() - 0.5) * 0.2;
+            // 半径覆盖从单个格子到整个区域
+            double radius = 100 + random.nextInt(20000);
+            Assert.assertEquals(bruteForce(1L, x, y, radius), ids(index.within(1L, x, y, radius)));
+        }
+    }
+
+    @Test
+    public void partitionsAreSeparate() {
+        index.put(1L, 1L, CENTER_X, CENTER_Y, 10);
+        index.put(2L, 2L, CENTER_X, CENTER_Y, 20);
+        Assert.assertEquals(1, index.within(1L, CENTER_X, CENTER_Y, 100).size());
+        Assert.assertEquals(Long.valueOf(2), index.nearest(2L, CENTER_X, CENTER_Y, 100, 5).get(0).getId());
+        Assert.assertTrue(index.within(3L, CENTER_X, CENTER_Y, 100).isEmpty());
+    }
+
+    @Test
+    public void moveAndRemove() {
+        index.put(1L, 1L, CENTER_X, CENTER_Y, 10);
+        // 移动到另一个分区、另一个格子
+        index.put(1L, 2L, CENTER_X + 0.05, CENTER_Y, 10);
+        Assert.assertTrue(index.within(1L, CENTER_X, CENTER_Y, 1000).isEmpty());
+        Assert.assertTrue(index.within(2L, CENTER_X, CENTER_Y, 1000).isEmpty());
+        Assert.assertEquals(1, index.within(2L, CENTER_X + 0.05, CENTER_Y, 1000).size());
+        index.remove(1L);
+        Assert.assertTrue(index.nearest(2L, CENTER_X + 0.05, CENTER_Y, 1000, 5).isEmpty());
+    }
+
+    @Test
+    public void rankedWeighsDistance() {
+        // 评分相同时距离近的在前，评分高很多时远一点也排在前面
+        index.put(1L, 1L, CENTER_X + 0.001, CENTER_Y, 40);
+        index.put(2L, 1L, CENTER_X + 0.002, CENTER_Y, 40);
+        index.put(3L, 1L, CENTER_X + 0.003, CENTER_Y, 400);
+        List<GeoGridIndex.Hit<Integer>> hits = index.ranked(1L, CENTER_X, CENTER_Y, 5000, Integer::doubleValue, 1000, 0, 10);
+        Assert.assertEquals(Arrays.asList(3L, 1L, 2L), ids(hits));
+        Assert.assertEquals(Arrays.asList(2L), ids(index.ranked(1L, CENTER_X, CENTER_Y, 5000, Integer::doubleValue, 1000, 2, 10)));
+    }
+
+    private void fill(int count, long seed) {
+        Random random = new Random(seed);
+        for (long id = 1; id <= count; id++) {
+            double x = CENTER_X + (random.nextDouble() - 0.5) * 0.2;
+            double y = CENTER_Y + (random.nextDouble() - 0.5) * 0.2;
+            long partition = id % 3 == 0 ? 2L : 1L;
+            index.put(id, partition, x, y, (int) id);
+            shops.add(new double[]{id, partition, x, y});
+        }
+    }
+
+    private List<Long> bruteForce(Long partition, double x, double y, double radius) {
+        List<double[]> hits = new ArrayList<>();
+        for (double[] shop : shops) {
+            if (shop[1] != partition) {
+                continue;
+            }
+            double d = GeoGridIndex.distance(x, y, shop[2], shop[3]);
+            if (d <= radius) {
+                hits.add(new double[]{shop[0], d});
+            }
+        }
+        hits.sort(Comparator.comparingDouble(h -> h[1]));
+        return hits.stream().map(h -> (long) h[0]).collect(Collectors.toList());
+    }
+
+    private static List<Long> ids(List<GeoGridIndex.Hit<Integer>> hits) {
+        return hits.stream().map(GeoGridIndex.Hit::getId).collect(Collectors.toList());
+    }
+}
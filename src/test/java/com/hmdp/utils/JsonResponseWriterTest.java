@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Shop;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 直接写出的响应和Spring MVC序列化Result的结果一致
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class JsonResponseWriterTest {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final JsonResponseWriter writer = new JsonResponseWriter(objectMapper);
+
+    @Test
+    public void passThroughMatchesResult() throws Exception {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setX(120.149192);
+        shop.setCreateTime(LocalDateTime.of(2022, 4, 23, 12, 0));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.writeOk(response, writer.toJson(RedisConstants.CACHE_SHOP_KEY + 1, shop));
+        Assert.assertEquals(objectMapper.writeValueAsString(Result.ok(shop)), response.getContentAsString());
+        Assert.assertEquals(response.getContentAsByteArray().length, response.getContentLength());
+        Assert.assertTrue(response.getContentType().startsWith("application/json"));
+
+        response = new MockHttpServletResponse();
+        writer.writeOk(response, writer.toJson(Arrays.asList(1, 2, 3)));
+        Assert.assertEquals(objectMapper.writeValueAsString(Result.ok(Arrays.asList(1, 2, 3))), response.getContentAsString());
+    }
+
+    @Test
+    public void sameObjectIsSerializedOnce() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        byte[] json = writer.toJson(RedisConstants.CACHE_SHOP_KEY + 1, shop);
+        Assert.assertSame(json, writer.toJson(RedisConstants.CACHE_SHOP_KEY + 1, shop));
+        // 本地缓存中的对象被替换之后重新序列化
+        Shop updated = new Shop();
+        updated.setId(1L);
+        updated.setName("新名称");
+        Assert.assertNotSame(json, writer.toJson(RedisConstants.CACHE_SHOP_KEY + 1, updated));
+    }
+
+    @Test
+    public void matchingEtagReturnsNotModified() throws Exception {
+        Shop shop = new Shop();
+        shop.setId(2L);
+        String key = RedisConstants.CACHE_SHOP_KEY + 2;
+        CacheControl cacheControl = CacheControl.maxAge(10, TimeUnit.SECONDS);
+
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        writer.writeOk(new ServletWebRequest(new MockHttpServletRequest("GET", "/shop/2"), first), key, shop, -1, cacheControl);
+        Assert.assertEquals(200, first.getStatus());
+        String etag = first.getHeader(HttpHeaders.ETAG);
+        Assert.assertNotNull(etag);
+        Assert.assertEquals("max-age=10", first.getHeader(HttpHeaders.CACHE_CONTROL));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/shop/2");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        MockHttpServletResponse second = new MockHttpServletResponse();
+        writer.writeOk(new ServletWebRequest(request, second), key, shop, -1, cacheControl);
+        Assert.assertEquals(304, second.getStatus());
+        Assert.assertEquals(0, second.getContentAsByteArray().length);
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class LocalBloomFilterTest {
+
+    @Test
+    public void noFalseNegatives() {
+        LocalBloomFilter filter = new LocalBloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 10000; id++) {
+            Assert.assertTrue(filter.mightContain(id));
+        }
+        Assert.assertEquals(10000, filter.getInsertions());
+        Assert.assertEquals(10000, filter.getMightContainCount());
+        Assert.assertEquals(0, filter.getRejectedCount());
+    }
+
+    @Test
+    public void falsePositiveRateNearConfigured() {
+        LocalBloomFilter filter = new LocalBloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            filter.put(id);
+        }
+        int falsePositives = 0;
+        int lookups = 100000;
+        for (long id = 1000001; id < 1000001 + lookups; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / lookups;
+        Assert.assertTrue("误判率过高: " + rate, rate < 0.02);
+        Assert.assertEquals(0.01, filter.expectedFpp(), 0.005);
+    }
+
+    @Test
+    public void observedFppCountsOnlyMissingIds() {
+        LocalBloomFilter filter = new LocalBloomFilter(100, 0.01);
+        for (long id = 1; id <= 100; id++) {
+            filter.put(id);
+        }
+        // 存在的id放行，不影响误判率
+        for (long id = 1; id <= 100; id++) {
+            filter.mightContain(id);
+        }
+        Assert.assertEquals(0, filter.observedFpp(), 0);
+
+        int rejected = 0;
+        int falsePositives = 0;
+        for (long id = 1000; id < 2000; id++) {
+            if (filter.mightContain(id)) {
+                // 放行之后数据库查不到
+                filter.recordFalsePositive();
+                falsePositives++;
+            } else {
+                rejected++;
+            }
+        }
+        Assert.assertEquals(rejected, filter.getRejectedCount());
+        Assert.assertEquals(falsePositives, filter.getFalsePositiveCount());
+        Assert.assertEquals((double) falsePositives / 1000, filter.observedFpp(), 1e-9);
+    }
+
+    @Test
+    public void sizedByFormula() {
+        LocalBloomFilter filter = new LocalBloomFilter(1000, 0.01);
+        // m = -n * ln(p) / (ln2)^2 约9586位，按64位取整；k = m / n * ln2 约7
+        Assert.assertEquals(9600, filter.getBitSize());
+        Assert.assertEquals(7, filter.getHashCount());
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class NgramIndexTest {
+
+    private final NgramIndex index = new NgramIndex();
+
+    @Test
+    public void ranksByMatchQualityThenScoreThenId() {
+        index.put(1L, "茶餐厅", "大关", "金华路", 40);
+        index.put(2L, "茶餐厅大关店", "大关", "金华路", 30);
+        index.put(3L, "港式茶餐厅", "拱宸桥", "上塘路", 50);
+        index.put(4L, "港式茶餐厅", "拱宸桥", "上塘路", 50);
+        index.put(5L, "海底捞", "茶餐厅商圈", "莫干山路", 45);
+        // 名称相等 > 名称前缀 > 名称包含 > 商圈包含，同一级别评分高、id小的在前
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), index.search("茶餐厅", 0, 10));
+        Assert.assertEquals(Arrays.asList(3L, 4L), index.search("茶餐厅", 2, 2));
+    }
+
+    @Test
+    public void matchesSingleCharAndIgnoresCaseAndSpaces() {
+        index.put(1L, "KFC 肯德基", "大关", "金华路", 40);
+        index.put(2L, "麦当劳", "大关", "上塘路", 40);
+        Assert.assertEquals(Collections.singletonList(1L), index.search("kfc", 0, 10));
+        Assert.assertEquals(Collections.singletonList(1L), index.search("肯 德", 0, 10));
+        Assert.assertEquals(Collections.singletonList(2L), index.search("麦", 0, 10));
+        Assert.assertEquals(Arrays.asList(1L, 2L), index.search("大关", 0, 10));
+        Assert.assertTrue(index.search("  ", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void requiresAllGramsInOneField() {
+        index.put(1L, "茶馆", "餐厅街", "", 40);
+        // 茶和餐分别在不同的字段中，不会组成bigram，不算匹配
+        Assert.assertTrue(index.search("茶餐厅", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void updateAndRemove() {
+        index.put(1L, "老茶馆", "大关", "金华路", 40);
+        Assert.assertEquals(Collections.singletonList(1L), index.search("茶馆", 0, 10));
+        index.put(1L, "新咖啡馆", "大关", "金华路", 40);
+        Assert.assertTrue(index.search("茶馆", 0, 10).isEmpty());
+        Assert.assertEquals(Collections.singletonList(1L), index.search("咖啡", 0, 10));
+        index.remove(1L);
+        Assert.assertTrue(index.search("咖啡", 0, 10).isEmpty());
+        Assert.assertEquals(0, index.stats().get("docs"));
+        Assert.assertEquals(0, index.stats().get("grams"));
+    }
+}
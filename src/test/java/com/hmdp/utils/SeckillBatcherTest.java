@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量准入，redis用mock代替，mock的脚本按用户id返回结果：偶数成功，奇数重复下单
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class SeckillBatcherTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private SeckillBatcher batcher;
+    // 执行脚本的次数
+    private final AtomicInteger calls = new AtomicInteger();
+    // 执行脚本时每个批次的大小
+    private final List<Integer> batchSizes = new ArrayList<>();
+    // 每次执行脚本等待的时间，单位毫秒
+    private volatile long scriptMillis;
+    private final CountDownLatch scriptStarted = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        Mockito.when(stringRedisTemplate.execute(Mockito.any(RedisScript.class), Mockito.anyList(), Mockito.any()))
+                .thenAnswer(script());
+    }
+
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+
+    @Test
+    public void disabledReturnsNull() {
+        batcher = batcher(false, 100);
+        Assert.assertNull(batcher.admit(1L, 2L));
+        Assert.assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareBatches() throws Exception {
+        batcher = batcher(true, 1000);
+        int requests = 32;
+        ExecutorService pool = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (long userId = 0; userId < requests; userId++) {
+                long uid = userId;
+                futures.add(pool.submit(() -> batcher.admit(1L, uid)));
+            }
+            for (int i = 0; i < requests; i++) {
+                // 每个请求拿到的是自己在批次中的结果
+                Assert.assertEquals(Integer.valueOf(i % 2 == 0 ? 0 : 2), futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        synchronized (batchSizes) {
+            Assert.assertEquals(requests, batchSizes.stream().mapToInt(Integer::intValue).sum());
+            Assert.assertTrue("没有合并: " + batchSizes, batchSizes.size() < requests);
+        }
+        Mockito.verify(stringRedisTemplate, Mockito.never()).executePipelined(Mockito.any(RedisCallback.class));
+    }
+
+    @Test
+    public void timedOutBeforeSendIsWithdrawn() throws Exception {
+        batcher = batcher(true, 200);
+        scriptMillis = 300;
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> first = pool.submit(() -> batcher.admit(1L, 2L));
+            Assert.assertTrue(scriptStarted.await(5, TimeUnit.SECONDS));
+            // 唯一的合并线程正在执行上一批，这个请求一直在队列中，超时之后撤回，由调用方单独执行
+            Assert.assertNull(batcher.admit(1L, 4L));
+            // 发出之后第二次等待拿到结果
+            Assert.assertEquals(Integer.valueOf(0), first.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void abandonedSuccessIsRolledBack() {
+        batcher = batcher(true, 50);
+        scriptMillis = 200;
+        Assert.assertEquals(Integer.valueOf(SeckillBatcher.BUSY), batcher.admit(1L, 2L));
+        // 合并线程拿到成功的结果之后退回库存
+        Mockito.verify(stringRedisTemplate, Mockito.timeout(2000)).executePipelined(Mockito.any(RedisCallback.class));
+    }
+
+    @Test
+    public void abandonedFailureIsNotRolledBack() throws InterruptedException {
+        batcher = batcher(true, 50);
+        scriptMillis = 200;
+        Assert.assertEquals(Integer.valueOf(SeckillBatcher.BUSY), batcher.admit(1L, 3L));
+        Thread.sleep(300);
+        Mockito.verify(stringRedisTemplate, Mockito.never()).executePipelined(Mockito.any(RedisCallback.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void scriptFailureIsRethrown() {
+        Mockito.when(stringRedisTemplate.execute(Mockito.any(RedisScript.class), Mockito.anyList(), Mockito.any()))
+                .thenThrow(new IllegalStateException("redis down"));
+        batcher = batcher(true, 1000);
+        batcher.admit(1L, 2L);
+    }
+
+    private SeckillBatcher batcher(boolean enabled, long timeoutMillis) {
+        return new SeckillBatcher(stringRedisTemplate, new CacheMetrics(), enabled, 64, 2000, timeoutMillis, 1, 1000);
+    }
+
+    /**
+     * 参数为 当前时间, 优惠券id1, 用户id1, 优惠券id2, 用户id2...
+     */
+    private Answer<Object> script() {
+        return invocation -> {
+            Object[] args = invocation.getArguments();
+            calls.incrementAndGet();
+            scriptStarted.countDown();
+            if (scriptMillis > 0) {
+                Thread.sleep(scriptMillis);
+            }
+            Integer[] results = new Integer[(args.length - 3) / 2];
+            for (int i = 0; i < results.length; i++) {
+                long userId = Long.parseLong(args[4 + i * 2].toString());
+                results[i] = userId % 2 == 0 ? 0 : 2;
+            }
+            synchronized (batchSizes) {
+                batchSizes.add(results.length);
+            }
+            return Arrays.asList((Object[]) results);
+        };
+    }
+}
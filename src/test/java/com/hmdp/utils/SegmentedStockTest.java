@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 分段库存的key在集群中的分布
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class SegmentedStockTest {
+
+    @Test
+    public void segmentAndOrderSetShareSlot() {
+        for (int segment = 0; segment < 16; segment++) {
+            // lua脚本同时操作一个分段的哈希和订单集合，两个key必须在同一个槽
+            Assert.assertEquals(SlotHash.getSlot(SegmentedStock.segmentKey(8L, segment)),
+                    SlotHash.getSlot(SegmentedStock.orderKey(8L, segment)));
+        }
+    }
+
+    @Test
+    public void segmentsSpreadAcrossSlots() {
+        Set<Integer> slots = new HashSet<>();
+        for (int segment = 0; segment < 16; segment++) {
+            slots.add(SlotHash.getSlot(SegmentedStock.segmentKey(8L, segment)));
+        }
+        Assert.assertEquals(16, slots.size());
+    }
+}
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    public void concurrentCallsShareOneExecution() throws Exception {
+        int threads = 8;
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            futures.add(pool.submit(() -> singleFlight.execute("shop:1", () -> {
+                executions.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "shop";
+            })));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            // 第一个调用还没有结束，之后的调用都在等它的结果
+            for (int i = 1; i < threads; i++) {
+                futures.add(pool.submit(() -> singleFlight.execute("shop:1", () -> {
+                    executions.incrementAndGet();
+                    return "other";
+                })));
+            }
+            Assert.assertEquals(1, singleFlight.inFlightCount());
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<String> future : futures) {
+                Assert.assertEquals("shop", future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(0, singleFlight.inFlightCount());
+    }
+
+    @Test
+    public void differentKeysRunIndependently() {
+        Assert.assertEquals("a", singleFlight.execute("a", () -> "a"));
+        Assert.assertEquals("b", singleFlight.execute("b", () -> "b"));
+        // 结束之后不再合并，同一个key重新执行
+        Assert.assertEquals("a2", singleFlight.execute("a", () -> "a2"));
+    }
+
+    @Test
+    public void failureIsRethrownAndNotRemembered() {
+        try {
+            singleFlight.execute("shop:2", () -> {
+                throw new IllegalStateException("db down");
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("db down", e.getMessage());
+        }
+        Assert.assertEquals(0, singleFlight.inFlightCount());
+        Assert.assertEquals("ok", singleFlight.execute("shop:2", () -> "ok"));
+    }
+
+    @Test
+    public void waitersReceiveTheFailure() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = pool.submit(() -> singleFlight.execute("shop:3", () -> {
+                started.countDown();
+                await(release);
+                throw new IllegalStateException("db down");
+            }));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Object> waiter = pool.submit(() -> singleFlight.execute("shop:3", () -> "other"));
+            Thread.sleep(50);
+            release.countDown();
+            assertFailsWith(leader, IllegalStateException.class);
+            assertFailsWith(waiter, IllegalStateException.class);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void assertFailsWith(Future<?> future, Class<? extends Throwable> type) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(type.isInstance(e.getCause()));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
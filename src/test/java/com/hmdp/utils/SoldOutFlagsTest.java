@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * 售罄标记的代数，redis用mock代替
+ * @author CHAN
+ * @since 2022/4/29
+ */
+public class SoldOutFlagsTest {
+
+    private static final Long VOUCHER_ID = 10L;
+
+    private StringRedisTemplate stringRedisTemplate;
+    private ValueOperations<String, String> valueOperations;
+    private SoldOutFlags flags;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        valueOperations = Mockito.mock(ValueOperations.class);
+        Mockito.when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        flags = new SoldOutFlags(stringRedisTemplate, new CacheMetrics());
+        ReflectionTestUtils.setField(flags, "ttlMillis", 30000L);
+    }
+
+    @Test
+    public void markAndClear() {
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+        flags.markSoldOut(VOUCHER_ID, flags.generation(VOUCHER_ID));
+        Assert.assertTrue(flags.isSoldOut(VOUCHER_ID));
+        Mockito.verify(stringRedisTemplate).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "+10:0");
+
+        // 重复标记不再广播
+        flags.markSoldOut(VOUCHER_ID, 0);
+        Mockito.verify(stringRedisTemplate, Mockito.times(1)).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "+10:0");
+
+        Mockito.when(valueOperations.increment(RedisConstants.SECKILL_SOLD_OUT_GENERATION_KEY + VOUCHER_ID)).thenReturn(1L);
+        flags.clearSoldOut(VOUCHER_ID);
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+        Assert.assertEquals(1, flags.generation(VOUCHER_ID));
+        Mockito.verify(stringRedisTemplate).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "-10:1");
+    }
+
+    @Test
+    public void staleMarkIsIgnored() {
+        // 执行lua脚本之前记下代数，返回库存不足之前另一个请求补充了库存
+        long generation = flags.generation(VOUCHER_ID);
+        Mockito.when(valueOperations.increment(RedisConstants.SECKILL_SOLD_OUT_GENERATION_KEY + VOUCHER_ID)).thenReturn(1L);
+        flags.clearSoldOut(VOUCHER_ID);
+        flags.markSoldOut(VOUCHER_ID, generation);
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+        Mockito.verify(stringRedisTemplate, Mockito.never()).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "+10:0");
+
+        // 补充库存之后的请求带着新的代数，可以标记
+        flags.markSoldOut(VOUCHER_ID, flags.generation(VOUCHER_ID));
+        Assert.assertTrue(flags.isSoldOut(VOUCHER_ID));
+    }
+
+    @Test
+    public void broadcastsAreOrderedByGeneration() {
+        // 清除广播先于之前的标记广播到达
+        flags.onMessage("-10:2");
+        flags.onMessage("+10:1");
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+        Assert.assertEquals(2, flags.generation(VOUCHER_ID));
+
+        // 漏掉了清除广播，直接收到更新代数的标记
+        flags.onMessage("+10:3");
+        Assert.assertTrue(flags.isSoldOut(VOUCHER_ID));
+        Assert.assertEquals(3, flags.generation(VOUCHER_ID));
+
+        // 旧的清除广播不会清除新的标记
+        flags.onMessage("-10:2");
+        Assert.assertTrue(flags.isSoldOut(VOUCHER_ID));
+        flags.onMessage("-10:3");
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+        // 收到的广播只修改本地标记
+        Mockito.verify(stringRedisTemplate, Mockito.never()).convertAndSend(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void markExpires() throws InterruptedException {
+        ReflectionTestUtils.setField(flags, "ttlMillis", 200L);
+        flags.markSoldOut(VOUCHER_ID, 0);
+        Assert.assertTrue(flags.isSoldOut(VOUCHER_ID));
+        Thread.sleep(300);
+        Assert.assertFalse(flags.isSoldOut(VOUCHER_ID));
+    }
+}